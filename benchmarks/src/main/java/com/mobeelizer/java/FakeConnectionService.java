@@ -0,0 +1,70 @@
+package com.mobeelizer.java;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.mobeelizer.java.connection.MobeelizerConnectionService;
+import com.mobeelizer.java.errors.MobeelizerOperationStatus;
+
+/**
+ * In-process stand-in for the Mobeelizer server. Every synchronization gets the same ticket, completes immediately and
+ * downloads a copy of the prepared sync archive.
+ */
+final class FakeConnectionService implements InvocationHandler {
+
+    private static final String TICKET = "benchmark-ticket";
+
+    private final File syncData;
+
+    private FakeConnectionService(final File syncData) {
+        this.syncData = syncData;
+    }
+
+    static MobeelizerConnectionService create(final File syncData) {
+        return (MobeelizerConnectionService) Proxy.newProxyInstance(FakeConnectionService.class.getClassLoader(),
+                new Class<?>[] { MobeelizerConnectionService.class }, new FakeConnectionService(syncData));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        String name = method.getName();
+
+        if ("sendSyncAllRequest".equals(name) || "sendSyncDiffRequest".equals(name)) {
+            return new MobeelizerOperationStatus<String>(TICKET);
+        } else if ("waitUntilSyncRequestComplete".equals(name) || "confirmTask".equals(name)) {
+            return null;
+        } else if ("getSyncData".equals(name)) {
+            return copy(syncData);
+        }
+
+        throw new UnsupportedOperationException(name);
+    }
+
+    private static File copy(final File source) throws IOException {
+        File target = File.createTempFile("mobeelizer", "benchmark");
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = input.read(buffer)) > -1) {
+                    output.write(buffer, 0, len);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+        return target;
+    }
+
+}
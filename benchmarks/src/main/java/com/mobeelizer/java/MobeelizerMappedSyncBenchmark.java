@@ -0,0 +1,160 @@
+package com.mobeelizer.java;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mobeelizer.java.api.MobeelizerErrors;
+import com.mobeelizer.java.api.MobeelizerErrorsBuilder;
+import com.mobeelizer.java.api.MobeelizerFile;
+import com.mobeelizer.java.api.MobeelizerModel;
+import com.mobeelizer.java.api.MobeelizerOperationError;
+import com.mobeelizer.java.benchmark.BenchmarkEntity;
+import com.mobeelizer.java.definition.MobeelizerApplicationDefinition;
+import com.mobeelizer.java.sync.MobeelizerInputData;
+
+/**
+ * Benchmarks of the synchronization pipeline with the definition, measuring the conversion between mapped entities and the
+ * synchronized data. {@link MobeelizerSyncServiceBenchmark} measures the pipeline without the definition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MobeelizerMappedSyncBenchmark {
+
+    private static final String PACKAGE_NAME = "com.mobeelizer.java.benchmark";
+
+    private static final String ROLE = "users-all";
+
+    @Param({ "100", "10000" })
+    public int entityCount;
+
+    private List<Object> entities;
+
+    private File syncData;
+
+    private MobeelizerSyncService syncService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InputStream definition = MobeelizerMappedSyncBenchmark.class.getResourceAsStream("/benchmark-definition.xml");
+        MobeelizerApplicationDefinition applicationDefinition;
+        try {
+            applicationDefinition = MobeelizerDefinitionCache.getApplicationDefinition(definition);
+        } finally {
+            definition.close();
+        }
+        Set<MobeelizerModel> models = MobeelizerDefinitionCache.getModels(applicationDefinition, PACKAGE_NAME, ROLE);
+
+        entities = new ArrayList<Object>(entityCount);
+        for (int i = 0; i < entityCount; i++) {
+            BenchmarkEntity entity = new BenchmarkEntity();
+            entity.setGuid(UUID.randomUUID().toString());
+            entity.setOwner("owner");
+            entity.setTitle("title " + i);
+            entity.setDescription("description of the entity " + i);
+            entity.setCounter(i);
+            entity.setAmount(i / 100.0);
+            entity.setActive(i % 2 == 0);
+            entity.setCreated(new Date(i * 1000L));
+            entities.add(entity);
+        }
+
+        // the archive sent by the fake server is built the same way as the one uploaded by the SDK
+        syncData = File.createTempFile("mobeelizer", "benchmark");
+        new MobeelizerSyncService(models, null).prepareOutputFile(syncData, entities, null, false,
+                new MobeelizerErrorsBuilder(), null, null, null);
+
+        syncService = new MobeelizerSyncService(models, FakeConnectionService.create(syncData));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        syncData.delete();
+    }
+
+    @Benchmark
+    public long prepareOutputFile() throws IOException {
+        File outputFile = File.createTempFile("mobeelizer", "benchmark");
+        try {
+            syncService.prepareOutputFile(outputFile, entities, null, false, new MobeelizerErrorsBuilder(), null, null, null);
+            return outputFile.length();
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void prepareInputEntitiesIterator(final Blackhole blackhole) throws IOException {
+        File tempFile = File.createTempFile("mobeelizer", "input");
+        MobeelizerInputData inputData = new MobeelizerInputData(new FileInputStream(syncData), tempFile);
+        try {
+            for (Object entity : syncService.prepareInputEntitiesIterator(inputData, null, null)) {
+                blackhole.consume(entity);
+            }
+        } finally {
+            inputData.close();
+            tempFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void syncAndWait(final Blackhole blackhole) {
+        syncService.sync(entities, null, new MappedSyncCallback(blackhole));
+    }
+
+    private static class MappedSyncCallback implements MobeelizerSyncCallback {
+
+        private final Blackhole blackhole;
+
+        MappedSyncCallback(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onSyncFinishedWithSuccess(final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
+                final Iterable<String> deletedFiles, final MobeelizerConfirmSyncCallback confirmCallback) {
+            for (Object entity : entities) {
+                blackhole.consume(entity);
+            }
+            confirmCallback.confirm();
+        }
+
+        @Override
+        public void onSyncFinishedWithError(final MobeelizerOperationError error) {
+            throw new IllegalStateException("Synchronization failed: " + error.getMessage());
+        }
+
+        @Override
+        public void onSyncFinishedWithError(final MobeelizerErrors databaseError) {
+            throw new IllegalStateException("Synchronization failed with validation errors");
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.mobeelizer.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mobeelizer.java.api.MobeelizerErrors;
+import com.mobeelizer.java.api.MobeelizerErrorsBuilder;
+import com.mobeelizer.java.api.MobeelizerFile;
+import com.mobeelizer.java.api.MobeelizerOperationError;
+import com.mobeelizer.java.sync.MobeelizerInputData;
+
+/**
+ * Benchmarks of the synchronization pipeline. Run with {@code java -jar target/benchmarks.jar -prof gc} to get allocation
+ * rates along with the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MobeelizerSyncServiceBenchmark {
+
+    private static final int FILE_COUNT = 10;
+
+    @Param({ "100", "10000" })
+    public int entityCount;
+
+    @Param({ "5", "50" })
+    public int fieldCount;
+
+    @Param({ "1024", "1048576" })
+    public int fileSize;
+
+    private List<Object> entities;
+
+    private List<MobeelizerFile> files;
+
+    private File syncData;
+
+    private MobeelizerSyncService syncService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        entities = new ArrayList<Object>(entityCount);
+        for (int i = 0; i < entityCount; i++) {
+            Map<String, String> entity = new HashMap<String, String>();
+            entity.put("model", "model" + (i % 3));
+            entity.put("guid", UUID.randomUUID().toString());
+            entity.put("owner", "owner");
+            for (int j = 0; j < fieldCount; j++) {
+                entity.put("field" + j, "value " + i + " of field " + j);
+            }
+            entities.add(entity);
+        }
+
+        files = new ArrayList<MobeelizerFile>(FILE_COUNT);
+        byte[] content = new byte[fileSize];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        for (int i = 0; i < FILE_COUNT; i++) {
+            files.add(new BenchmarkFile(UUID.randomUUID().toString(), content));
+        }
+
+        // the archive sent by the fake server is built the same way as the one uploaded by the SDK
+        syncData = File.createTempFile("mobeelizer", "benchmark");
+        new MobeelizerSyncService(null, null).prepareOutputFile(syncData, entities, files, false, new MobeelizerErrorsBuilder(),
+                null, null, null);
+
+        syncService = new MobeelizerSyncService(null, FakeConnectionService.create(syncData));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        syncData.delete();
+    }
+
+    @Benchmark
+    public long prepareOutputFile() throws IOException {
+        File outputFile = File.createTempFile("mobeelizer", "benchmark");
+        try {
+            syncService.prepareOutputFile(outputFile, entities, files, false, new MobeelizerErrorsBuilder(), null, null,
+                    null);
+            return outputFile.length();
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void prepareInputEntitiesIterator(final Blackhole blackhole) throws IOException {
+        File tempFile = File.createTempFile("mobeelizer", "input");
+        MobeelizerInputData inputData = new MobeelizerInputData(new FileInputStream(syncData), tempFile);
+        try {
+            for (Object entity : syncService.prepareInputEntitiesIterator(inputData, null, null)) {
+                blackhole.consume(entity);
+            }
+        } finally {
+            inputData.close();
+            tempFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void prepareInputFileIterator(final Blackhole blackhole) throws IOException {
+        File tempFile = File.createTempFile("mobeelizer", "input");
+        MobeelizerInputData inputData = new MobeelizerInputData(new FileInputStream(syncData), tempFile);
+        MobeelizerInputFiles inputFiles = new MobeelizerInputFiles(inputData, new MobeelizerSpillStorage(null,
+                MobeelizerSpillStorage.DEFAULT_MEMORY_THRESHOLD));
+        try {
+            for (MobeelizerFile file : inputFiles) {
+                consume(file.getInputStream(), blackhole);
+            }
+        } finally {
+            inputFiles.close();
+            inputData.close();
+            tempFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void syncAndWait(final Blackhole blackhole) {
+        syncService.sync(entities, files, new BenchmarkSyncCallback(blackhole));
+    }
+
+    private static void consume(final InputStream input, final Blackhole blackhole) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = input.read(buffer)) > -1) {
+                blackhole.consume(len);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static class BenchmarkFile implements MobeelizerFile {
+
+        private final String guid;
+
+        private final byte[] content;
+
+        BenchmarkFile(final String guid, final byte[] content) {
+            this.guid = guid;
+            this.content = content;
+        }
+
+        @Override
+        public String getName() {
+            return guid;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public String getGuid() {
+            return guid;
+        }
+
+        @Override
+        public File getFile() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private static class BenchmarkSyncCallback implements MobeelizerSyncCallback {
+
+        private final Blackhole blackhole;
+
+        BenchmarkSyncCallback(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onSyncFinishedWithSuccess(final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
+                final Iterable<String> deletedFiles, final MobeelizerConfirmSyncCallback confirmCallback) {
+            try {
+                for (Object entity : entities) {
+                    blackhole.consume(entity);
+                }
+                for (MobeelizerFile file : files) {
+                    consume(file.getInputStream(), blackhole);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            confirmCallback.confirm();
+        }
+
+        @Override
+        public void onSyncFinishedWithError(final MobeelizerOperationError error) {
+            throw new IllegalStateException("Synchronization failed: " + error.getMessage());
+        }
+
+        @Override
+        public void onSyncFinishedWithError(final MobeelizerErrors databaseError) {
+            throw new IllegalStateException("Synchronization failed with validation errors");
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.mobeelizer.java.benchmark;
+
+import java.util.Date;
+
+/**
+ * Entity mapped to the BenchmarkEntity model of benchmark-definition.xml.
+ */
+public class BenchmarkEntity {
+
+    private String guid;
+
+    private String owner;
+
+    private boolean conflicted;
+
+    private boolean deleted;
+
+    private boolean modified;
+
+    private String title;
+
+    private String description;
+
+    private Integer counter;
+
+    private Double amount;
+
+    private Boolean active;
+
+    private Date created;
+
+    public String getGuid() {
+        return guid;
+    }
+
+    public void setGuid(final String guid) {
+        this.guid = guid;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(final String owner) {
+        this.owner = owner;
+    }
+
+    public boolean isConflicted() {
+        return conflicted;
+    }
+
+    public void setConflicted(final boolean conflicted) {
+        this.conflicted = conflicted;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(final boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    public void setModified(final boolean modified) {
+        this.modified = modified;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(final String title) {
+        this.title = title;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(final String description) {
+        this.description = description;
+    }
+
+    public Integer getCounter() {
+        return counter;
+    }
+
+    public void setCounter(final Integer counter) {
+        this.counter = counter;
+    }
+
+    public Double getAmount() {
+        return amount;
+    }
+
+    public void setAmount(final Double amount) {
+        this.amount = amount;
+    }
+
+    public Boolean getActive() {
+        return active;
+    }
+
+    public void setActive(final Boolean active) {
+        this.active = active;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(final Date created) {
+        this.created = created;
+    }
+
+}
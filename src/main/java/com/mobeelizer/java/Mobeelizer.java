@@ -21,13 +21,22 @@
 package com.mobeelizer.java;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.params.HttpConnectionParams;
 
 import com.mobeelizer.java.api.MobeelizerFile;
 import com.mobeelizer.java.api.MobeelizerEntityVersion;
@@ -40,12 +49,11 @@ import com.mobeelizer.java.connection.MobeelizerConnectionService;
 import com.mobeelizer.java.connection.MobeelizerConnectionServiceDelegate;
 import com.mobeelizer.java.connection.MobeelizerConnectionServiceImpl;
 import com.mobeelizer.java.definition.MobeelizerApplicationDefinition;
-import com.mobeelizer.java.definition.MobeelizerDefinitionConverter;
-import com.mobeelizer.java.definition.MobeelizerDefinitionParser;
 import com.mobeelizer.java.errors.MobeelizerOperationStatus;
+import com.mobeelizer.java.sync.MobeelizerJsonEntity;
 
 /**
- * Entry point to the Mobeelizer application.
+ * Entry point to the Mobeelizer application. Instance can be used by many threads at the same time.
  * 
  * @since 1.0
  */
@@ -55,63 +63,60 @@ public class Mobeelizer {
 
     private final MobeelizerApplicationDefinition applicationDefinition;
 
-    private final MobeelizerDefinitionConverter mobeelizerDefinitionConverter;
-
-    private final MobeelizerSyncService syncService;
+    private volatile MobeelizerSyncService syncService;
 
     private final MobeelizerConnectionService connectionService;
 
+    private final MobeelizerConnectionGuard connectionGuard;
+
     private final Set<MobeelizerModel> definition = new HashSet<MobeelizerModel>();
 
     private final MobeelizerConfiguration configuration;
 
+    private final ExecutorService syncExecutor;
+
+    private volatile MobeelizerSyncBatcher syncBatcher;
+
+    private MobeelizerLocalStore localStore;
+
+    private final MobeelizerAuthenticationCache authenticationCache;
+
+    private final MobeelizerUserDirectory userDirectory;
+
+    private FutureTask<Void> initialization;
+
     /**
      * Version of Mobeelizer SDK.
      */
     public static final String VERSION = "${project.version}";
 
     /**
-     * Creates new Mobeelizer SDK.
+     * Creates new Mobeelizer SDK. The user is authenticated before it returns, unless the authentication in the background is
+     * enabled.
      * 
      * @param configuration
      *            configuration
      * @since 1.0
+     * @see MobeelizerConfiguration#setAsyncAuthentication(boolean)
      */
     public Mobeelizer(final MobeelizerConfiguration configuration) {
-        this.configuration = configuration;
-        if (configuration.getDevice() == null) {
-            throw new IllegalStateException("Device must be set in configuration.");
-        }
-
-        if (configuration.getMode() == null) {
-            throw new IllegalStateException("Mode must be set in configuration.");
-        }
-
-        if (configuration.getUser() == null) {
-            throw new IllegalStateException("Login must be set in configuration.");
-        }
-
-        if (configuration.getPassword() == null) {
-            throw new IllegalStateException("Password must be set in configuration.");
-        }
-
-        if (configuration.getPackageName() == null) {
-            throw new IllegalStateException("Package name must be set in configuration.");
-        }
-
-        if (configuration.getDefinition() == null) {
-            throw new IllegalStateException("Definition file must be set in configuration.");
-        }
-
-        mobeelizerDefinitionConverter = new MobeelizerDefinitionConverter();
+        this(configuration.copy(), parseDefinition(configuration));
+    }
 
-        applicationDefinition = MobeelizerDefinitionParser.parse(configuration.getDefinition());
+    private Mobeelizer(final MobeelizerConfiguration configuration, final MobeelizerApplicationDefinition applicationDefinition) {
+        this.configuration = configuration;
+        this.applicationDefinition = applicationDefinition;
 
         connectionService = new MobeelizerConnectionServiceImpl(new MobeelizerConnectionServiceDelegate() {
 
             @Override
             public void setProxyIfNecessary(final HttpRequestBase request) {
-                // empty
+                if (configuration.getConnectTimeout() > 0) {
+                    HttpConnectionParams.setConnectionTimeout(request.getParams(), configuration.getConnectTimeout());
+                }
+                if (configuration.getReadTimeout() > 0) {
+                    HttpConnectionParams.setSoTimeout(request.getParams(), configuration.getReadTimeout());
+                }
             }
 
             @Override
@@ -186,28 +191,175 @@ public class Mobeelizer {
 
         });
 
-        MobeelizerAuthenticateResponse authenticate;
+        connectionGuard = new MobeelizerConnectionGuard(configuration.getUrl(), configuration.getMaxRetries(),
+                configuration.getRetryBackoff(), configuration.getCircuitBreakerThreshold(),
+                configuration.getCircuitBreakerTimeout());
 
-        if (configuration.getPushNotificationUrl() != null) {
-            authenticate = connectionService.authenticate(configuration.getUser(), configuration.getPassword(), "http",
-                    configuration.getPushNotificationUrl());
+        authenticationCache = new MobeelizerAuthenticationCache(configuration.getUrl(), configuration.getInstance(),
+                configuration.getAuthenticationCacheTtl());
+
+        userDirectory = new MobeelizerUserDirectory(configuration.getDirectoryCacheTtl());
+
+        syncExecutor = configuration.getSyncExecutor() != null ? configuration.getSyncExecutor() : MobeelizerExecutors
+                .getDefaultSyncExecutor();
+
+        if (configuration.isAsyncAuthentication()) {
+            startInitialization();
         } else {
-            authenticate = connectionService.authenticate(configuration.getUser(), configuration.getPassword());
+            initialize();
         }
+    }
 
-        if (authenticate == null) {
-            throw new IllegalStateException("User with login " + configuration.getUser() + " cannot be authorized");
+    /**
+     * Authenticates the user and prepares the definition and the synchronization for the user's role.
+     */
+    private void initialize() {
+        String role = configuration.getPushNotificationUrl() == null ? authenticationCache.getRole(configuration.getUser(),
+                configuration.getPassword()) : null;
+
+        if (role == null) {
+            long authenticated = System.currentTimeMillis();
+            MobeelizerAuthenticateResponse authenticate = authenticate(configuration.getUser(), configuration.getPassword(),
+                    configuration.getPushNotificationUrl());
+
+            if (authenticate == null) {
+                throw new IllegalStateException("User with login " + configuration.getUser() + " cannot be authorized");
+            }
+
+            if (authenticate.getError() != null) {
+                throw new IllegalStateException("User with login " + configuration.getUser() + " cannot be authorized: "
+                        + authenticate.getError().getMessage());
+            }
+
+            role = authenticate.getRole();
+            authenticationCache.put(configuration.getUser(), configuration.getPassword(), role, authenticated);
         }
 
-        if (authenticate.getError() != null) {
-            throw new IllegalStateException("User with login " + configuration.getUser() + " cannot be authorized: "
-                    + authenticate.getError().getMessage());
+        definition.addAll(MobeelizerDefinitionCache.getModels(applicationDefinition, configuration.getPackageName(), role));
+
+        MobeelizerSpillStorage spillStorage = new MobeelizerSpillStorage(configuration.getSpillDirectory(),
+                configuration.getSpillThreshold());
+
+        MobeelizerSyncService syncService = new MobeelizerSyncService(definition, connectionService);
+        syncService.setConnectionGuard(connectionGuard);
+        syncService.setSpillStorage(spillStorage);
+
+        if (configuration.getStateDirectory() != null) {
+            MobeelizerStateLock.acquire(configuration.getStateDirectory(), getStateName(), this);
+            syncService.setJournal(new MobeelizerSyncJournal(configuration.getStateDirectory(), getStateName()));
+        }
+
+        if (configuration.isDeltaSync()) {
+            syncService.setSnapshot(new MobeelizerSyncSnapshot(configuration.getStateDirectory(), getStateName()));
+        }
+
+        if (configuration.isFileDeduplication()) {
+            syncService.setFileIndex(new MobeelizerFileIndex(configuration.getStateDirectory(), getStateName(),
+                    spillStorage));
+        }
+
+        if (configuration.isLocalStore()) {
+            localStore = new MobeelizerLocalStore(configuration.getStateDirectory(), getStateName(),
+                    configuration.getLocalStoreIndexes(), spillStorage);
+            syncService.setLocalStore(localStore);
+        }
+
+        syncService.setListener(configuration.getSyncListener());
+        syncService.setDecodeExecutor(configuration.getDecodeExecutor(), configuration.getDecodeChunkSize());
+        syncService.setModelBatchSize(configuration.getModelBatchSize());
+
+        syncBatcher = new MobeelizerSyncBatcher(syncService, syncExecutor, configuration.getSyncBatchWindow(),
+                configuration.getSyncBatchSize());
+
+        this.syncService = syncService;
+    }
+
+    /**
+     * Starts the authentication on the synchronization executor, unless it is in progress or has succeeded.
+     */
+    private synchronized FutureTask<Void> startInitialization() {
+        if (initialization == null || initialization.isDone() && syncService == null) {
+            initialization = new FutureTask<Void>(new Runnable() {
+
+                @Override
+                public void run() {
+                    initialize();
+                }
+
+            }, null);
+            syncExecutor.execute(initialization);
+        }
+        return initialization;
+    }
+
+    private MobeelizerSyncService getSyncService() {
+        if (syncService == null) {
+            FutureTask<Void> task = startInitialization();
+            // runs the authentication in this thread if the executor has not started it yet, so waiting on the busy executor
+            // cannot deadlock
+            task.run();
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while authenticating user " + configuration.getUser(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return syncService;
+    }
+
+    private MobeelizerSyncBatcher getSyncBatcher() {
+        getSyncService();
+        return syncBatcher;
+    }
+
+    private static MobeelizerApplicationDefinition parseDefinition(final MobeelizerConfiguration configuration) {
+        if (configuration.getDevice() == null) {
+            throw new IllegalStateException("Device must be set in configuration.");
+        }
+
+        if (configuration.getMode() == null) {
+            throw new IllegalStateException("Mode must be set in configuration.");
+        }
+
+        if (configuration.getUser() == null) {
+            throw new IllegalStateException("Login must be set in configuration.");
+        }
+
+        if (configuration.getPassword() == null) {
+            throw new IllegalStateException("Password must be set in configuration.");
+        }
+
+        if (configuration.getPackageName() == null) {
+            throw new IllegalStateException("Package name must be set in configuration.");
+        }
+
+        if (configuration.getDefinition() == null) {
+            throw new IllegalStateException("Definition file must be set in configuration.");
+        }
+
+        if (configuration.isDeltaSync() && configuration.getStateDirectory() == null) {
+            throw new IllegalStateException("State directory must be set in configuration to use delta synchronization.");
+        }
+
+        if (configuration.isFileDeduplication() && configuration.getStateDirectory() == null) {
+            throw new IllegalStateException("State directory must be set in configuration to use file deduplication.");
         }
 
-        definition.addAll(mobeelizerDefinitionConverter.convert(applicationDefinition, configuration.getPackageName(),
-                authenticate.getRole()));
+        if (configuration.isLocalStore() && configuration.getStateDirectory() == null) {
+            throw new IllegalStateException("State directory must be set in configuration to use local store.");
+        }
+
+        return MobeelizerDefinitionCache.getApplicationDefinition(configuration.getDefinition());
+    }
 
-        syncService = new MobeelizerSyncService(definition, connectionService);
+    private String getStateName() {
+        return (configuration.getInstance() + "-" + configuration.getUser()).replaceAll("[^A-Za-z0-9._-]", "_");
     }
 
     /**
@@ -217,7 +369,36 @@ public class Mobeelizer {
      * @since 1.0
      */
     public Set<MobeelizerModel> getDefinition() {
-        return definition;
+        getSyncService();
+        return Collections.unmodifiableSet(definition);
+    }
+
+    /**
+     * Creates new Mobeelizer SDK for the user with given login and password. The new instance shares the parsed definition,
+     * the configuration and the synchronization executor with this one, so it is much cheaper than creating Mobeelizer SDK from
+     * the configuration.
+     * 
+     * @param user
+     *            login of the user
+     * @param password
+     *            password of the user
+     * @return Mobeelizer SDK for given user
+     * @since 1.8
+     */
+    public Mobeelizer createSession(final String user, final String password) {
+        if (user == null) {
+            throw new IllegalStateException("Login must be set.");
+        }
+
+        if (password == null) {
+            throw new IllegalStateException("Password must be set.");
+        }
+
+        MobeelizerConfiguration sessionConfiguration = configuration.copy();
+        sessionConfiguration.setUser(user);
+        sessionConfiguration.setPassword(password);
+        sessionConfiguration.setSyncExecutor(syncExecutor);
+        return new Mobeelizer(sessionConfiguration, applicationDefinition);
     }
 
     /**
@@ -227,13 +408,19 @@ public class Mobeelizer {
      * @since 1.0
      */
     public String authenticate(final String login, final String password) {
-        MobeelizerAuthenticateResponse authenticate = connectionService.authenticate(login, password);
+        String role = authenticationCache.getRole(login, password);
+        if (role != null) {
+            return role;
+        }
+        long authenticated = System.currentTimeMillis();
+        MobeelizerAuthenticateResponse authenticate = authenticate(login, password, null);
         if (authenticate == null) {
             return null;
         }
         if (authenticate.getError() != null) {
             throw new IllegalStateException("Cannot authenticate user: " + authenticate.getError().getMessage());
         }
+        authenticationCache.put(login, password, authenticate.getRole(), authenticated);
         return authenticate.getRole();
     }
 
@@ -242,12 +429,26 @@ public class Mobeelizer {
      * 
      * @return groups
      * @since 1.0
+     * @see MobeelizerConfiguration#setDirectoryCacheTtl(long)
      */
     public List<String> getGroups() {
-        MobeelizerOperationStatus<List<String>> result = connectionService.getGroups();
+        List<String> groups = userDirectory.getGroups();
+        if (groups != null) {
+            return groups;
+        }
+        MobeelizerOperationStatus<List<String>> result = connectionGuard.executeStatus(true,
+                new MobeelizerConnectionGuard.StatusOperation<List<String>>() {
+
+                    @Override
+                    MobeelizerOperationStatus<List<String>> execute() {
+                        return connectionService.getGroups();
+                    }
+
+                });
         if (result.getError() != null) {
             throw new IllegalStateException("Cannot get groups: " + result.getError().getMessage());
         }
+        userDirectory.setGroups(result.getContent());
         return result.getContent();
     }
 
@@ -256,15 +457,97 @@ public class Mobeelizer {
      * 
      * @return users
      * @since 1.0
+     * @see MobeelizerConfiguration#setDirectoryCacheTtl(long)
      */
     public List<MobeelizerUser> getUsers() {
-        MobeelizerOperationStatus<List<MobeelizerUser>> result = connectionService.getUsers();
+        List<MobeelizerUser> users = userDirectory.getUsers();
+        if (users != null) {
+            return users;
+        }
+        MobeelizerOperationStatus<List<MobeelizerUser>> result = connectionGuard.executeStatus(true,
+                new MobeelizerConnectionGuard.StatusOperation<List<MobeelizerUser>>() {
+
+                    @Override
+                    MobeelizerOperationStatus<List<MobeelizerUser>> execute() {
+                        return connectionService.getUsers();
+                    }
+
+                });
         if (result.getError() != null) {
             throw new IllegalStateException("Cannot get users: " + result.getError().getMessage());
         }
+        userDirectory.setUsers(result.getContent());
         return result.getContent();
     }
 
+    /**
+     * Gets the page of users, in the same order as returned by {@link #getUsers()}. The cloud returns only the whole list of
+     * users, so pages are taken from the cached list of users. When the directory cache is disabled, which is the default, every
+     * page downloads the whole list of users; enable the cache before paging through many users.
+     * 
+     * @param offset
+     *            index of the first user
+     * @param limit
+     *            maximum number of users
+     * @return users
+     * @throws IllegalArgumentException
+     *             if the offset or the limit is negative
+     * @since 1.8
+     * @see MobeelizerConfiguration#setDirectoryCacheTtl(long)
+     */
+    public List<MobeelizerUser> getUsers(final int offset, final int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative.");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative.");
+        }
+        List<MobeelizerUser> users = getUsers();
+        if (offset >= users.size()) {
+            return new ArrayList<MobeelizerUser>(0);
+        }
+        return new ArrayList<MobeelizerUser>(users.subList(offset, offset + Math.min(users.size() - offset, limit)));
+    }
+
+    /**
+     * Gets users with given logins. Users that are not cached are downloaded with a single request, unless the whole list of
+     * users is cached.
+     * 
+     * @param logins
+     *            logins
+     * @return users by login, missing for logins of not existing users
+     * @since 1.8
+     * @see MobeelizerConfiguration#setDirectoryCacheTtl(long)
+     */
+    public Map<String, MobeelizerUser> getUsers(final Collection<String> logins) {
+        Map<String, MobeelizerUser> users = new LinkedHashMap<String, MobeelizerUser>();
+        boolean missing = false;
+
+        for (String login : logins) {
+            MobeelizerUser user = userDirectory.getUser(login);
+            if (user != null) {
+                users.put(login, user);
+            } else {
+                missing = true;
+            }
+        }
+
+        if (missing && !userDirectory.hasUsers()) {
+            Map<String, MobeelizerUser> allUsers = new LinkedHashMap<String, MobeelizerUser>();
+            for (MobeelizerUser user : getUsers()) {
+                allUsers.put(user.getLogin(), user);
+            }
+            users.clear();
+            for (String login : logins) {
+                if (allUsers.containsKey(login)) {
+                    users.put(login, allUsers.get(login));
+                }
+            }
+        }
+
+        return users;
+    }
+
     /**
      * Gets user with given login.
      * 
@@ -272,12 +555,28 @@ public class Mobeelizer {
      *            login
      * @return user
      * @since 1.0
+     * @see MobeelizerConfiguration#setDirectoryCacheTtl(long)
      */
     public MobeelizerUser getUser(final String login) {
-        MobeelizerOperationStatus<MobeelizerUser> result = connectionService.getUser(login);
+        MobeelizerUser user = userDirectory.getUser(login);
+        if (user != null) {
+            return user;
+        }
+        MobeelizerOperationStatus<MobeelizerUser> result = connectionGuard.executeStatus(true,
+                new MobeelizerConnectionGuard.StatusOperation<MobeelizerUser>() {
+
+                    @Override
+                    MobeelizerOperationStatus<MobeelizerUser> execute() {
+                        return connectionService.getUser(login);
+                    }
+
+                });
         if (result.getError() != null) {
             throw new IllegalStateException("Cannot get user: " + result.getError().getMessage());
         }
+        if (result.getContent() != null) {
+            userDirectory.putUser(result.getContent());
+        }
         return result.getContent();
     }
 
@@ -289,10 +588,18 @@ public class Mobeelizer {
      * @since 1.0
      */
     public void createUser(final MobeelizerUser user) {
-        MobeelizerOperationError error = connectionService.createUser(user);
+        MobeelizerOperationError error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.createUser(user);
+            }
+
+        });
         if (error != null) {
             throw new IllegalStateException("Cannot create user: " + error.getMessage());
         }
+        userDirectory.putUser(user);
     }
 
     /**
@@ -303,10 +610,20 @@ public class Mobeelizer {
      * @since 1.0
      */
     public void updateUser(final MobeelizerUser user) {
-        MobeelizerOperationError error = connectionService.updateUser(user);
+        MobeelizerOperationError error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.updateUser(user);
+            }
+
+        });
+        // the password may have changed even if the call has failed
+        authenticationCache.evict(user.getLogin());
         if (error != null) {
             throw new IllegalStateException("Cannot update user: " + error.getMessage());
         }
+        userDirectory.putUser(user);
     }
 
     /**
@@ -321,30 +638,81 @@ public class Mobeelizer {
         if (configuration.getUser().equals(login)) {
             return false;
         }
-        MobeelizerOperationError error = connectionService.deleteUser(login);
+        MobeelizerOperationError error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.deleteUser(login);
+            }
+
+        });
+        authenticationCache.evict(login);
         if (error != null) {
             throw new IllegalStateException("Cannot delete user: " + error.getMessage());
         }
+        userDirectory.removeUser(login);
         return true;
     }
 
     /**
-     * Start a full sync. After finished callback will be invoked.
+     * Start a full sync in the background. After finished callback will be invoked.
      * 
      * @param callback
      *            callback
+     * @return future completed after the callback has been invoked
      * @since 1.0
      * @see MobeelizerSyncCallback
+     * @see MobeelizerConfiguration#setSyncExecutor(ExecutorService)
+     */
+    public Future<Void> syncAll(final MobeelizerSyncCallback callback) {
+        return syncExecutor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                getSyncService().syncAll(callback);
+            }
+
+        }, (Void) null);
+    }
+
+    /**
+     * Start a full sync in the background, returning only entities matching the filter. After finished callback will be invoked.
+     * The cloud sends all entities, but entities that do not match the filter are skipped before they are converted. The filter is
+     * copied, so changing it after this method returns does not change the synchronization.
+     * 
+     * @param filter
+     *            filter of returned entities
+     * @param callback
+     *            callback
+     * @return future completed after the callback has been invoked
+     * @since 1.8
+     * @see MobeelizerSyncCallback
      */
-    public void syncAll(final MobeelizerSyncCallback callback) {
-        new Thread(new Runnable() {
+    public Future<Void> syncAll(final MobeelizerSyncFilter filter, final MobeelizerSyncCallback callback) {
+        final MobeelizerSyncFilter copy = filter != null ? filter.copy() : null;
+        return syncExecutor.submit(new Runnable() {
 
             @Override
             public void run() {
-                syncService.syncAll(callback);
+                getSyncService().syncAll(copy, callback);
             }
 
-        }).run();
+        }, (Void) null);
+    }
+
+    /**
+     * Start a full sync, returning only entities matching the filter. After finished callback will be invoked.
+     * 
+     * @param filter
+     *            filter of returned entities
+     * @param callback
+     *            callback
+     * @since 1.8
+     * @see MobeelizerSyncCallback
+     * @see #syncAll(MobeelizerSyncFilter, MobeelizerSyncCallback)
+     */
+    public void syncAllAndWait(final MobeelizerSyncFilter filter, final MobeelizerSyncCallback callback) {
+        getSyncService().syncAll(filter, callback);
     }
 
     /**
@@ -356,11 +724,11 @@ public class Mobeelizer {
      * @see MobeelizerSyncCallback
      */
     public void syncAllAndWait(final MobeelizerSyncCallback callback) {
-        syncService.syncAll(callback);
+        getSyncService().syncAll(callback);
     }
 
     /**
-     * Start a differential sync. After finished callback will be invoked.
+     * Start a differential sync in the background. After finished callback will be invoked.
      * 
      * @param entities
      *            new entities to send to the cloud
@@ -368,18 +736,21 @@ public class Mobeelizer {
      *            new files to send to the cloud
      * @param callback
      *            callback
+     * @return future completed after the callback has been invoked
      * @since 1.0
      * @see MobeelizerSyncCallback
+     * @see MobeelizerConfiguration#setSyncExecutor(ExecutorService)
      */
-    public void sync(final Iterable<Object> entities, final Iterable<MobeelizerFile> files, final MobeelizerSyncCallback callback) {
-        new Thread(new Runnable() {
+    public Future<Void> sync(final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
+            final MobeelizerSyncCallback callback) {
+        return syncExecutor.submit(new Runnable() {
 
             @Override
             public void run() {
-                syncService.sync(entities, files, callback);
+                getSyncService().sync(entities, files, callback);
             }
 
-        }).run();
+        }, (Void) null);
     }
 
     /**
@@ -396,7 +767,81 @@ public class Mobeelizer {
      */
     public void syncAndWait(final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
             final MobeelizerSyncCallback callback) {
-        syncService.sync(entities, files, callback);
+        getSyncService().sync(entities, files, callback);
+    }
+
+    /**
+     * Queue a differential sync. Synchronizations queued within the batch window are sent to the cloud as a single
+     * synchronization, in which entities with the same model and guid, and files with the same guid, are sent once with the
+     * last queued value. After finished callbacks of all queued synchronizations will be invoked with the same result. The
+     * synchronization is confirmed after all of them confirm it or fail with the exception. When entities of some queued
+     * synchronizations are invalid, only their callbacks are invoked with the errors and the rest is synchronized again.
+     * Callbacks implementing {@link MobeelizerBatchSyncCallback} receive entities through the iterable, not in per-model
+     * batches.
+     * 
+     * @param entities
+     *            new entities to send to the cloud
+     * @param files
+     *            new files to send to the cloud
+     * @param callback
+     *            callback
+     * @return future completed after the callbacks have been invoked
+     * @since 1.8
+     * @see MobeelizerConfiguration#setSyncBatchWindow(long)
+     * @see MobeelizerConfiguration#setSyncBatchSize(int)
+     */
+    public Future<Void> syncBatched(final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
+            final MobeelizerSyncCallback callback) {
+        return getSyncBatcher().sync(entities, files, callback);
+    }
+
+    /**
+     * Checks if there is a synchronization that has not been confirmed before.
+     * 
+     * @return true if the synchronization can be resumed
+     * @since 1.8
+     * @see MobeelizerConfiguration#setStateDirectory(java.io.File)
+     */
+    public boolean hasPendingSync() {
+        return getSyncService().hasPendingSync();
+    }
+
+    /**
+     * Resume in the background the oldest synchronization that has not been confirmed before and is not processed by another
+     * synchronization. Its data is downloaded again only if it was not downloaded before restart. After finished callback will
+     * be invoked.
+     * 
+     * @param callback
+     *            callback
+     * @return future completed after the callback has been invoked
+     * @since 1.8
+     * @see #hasPendingSync()
+     */
+    public Future<Void> resumeSync(final MobeelizerSyncCallback callback) {
+        if (!hasPendingSync()) {
+            throw new IllegalStateException("There is no synchronization to resume.");
+        }
+        return syncExecutor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                getSyncService().resumeSync(callback);
+            }
+
+        }, (Void) null);
+    }
+
+    /**
+     * Resume the oldest synchronization that has not been confirmed before and is not processed by another synchronization. Its
+     * data is downloaded again only if it was not downloaded before restart. After finished callback will be invoked.
+     * 
+     * @param callback
+     *            callback
+     * @since 1.8
+     * @see #hasPendingSync()
+     */
+    public void resumeSyncAndWait(final MobeelizerSyncCallback callback) {
+        getSyncService().resumeSync(callback);
     }
 
     /**
@@ -412,7 +857,89 @@ public class Mobeelizer {
      * @see MobeelizerGetConflictHistoryCallback
      */
     public void getConflictHistory(String model, String guid, MobeelizerGetConflictHistoryCallback callback){
-    	syncService.getConflictHistory(model, guid, callback);
+    	getSyncService().getConflictHistory(model, guid, callback);
+    }
+
+    /**
+     * Gets versions of many conflicted entities. Histories are downloaded lazily while iterating, a few entities ahead on the
+     * synchronization executor. Failures of single entities are reported by {@link MobeelizerConflictHistory#getError()}.
+     * 
+     * @param model
+     *            model name of conflicted entities
+     * @param guids
+     *            guids of conflicted entities
+     * @param latestVersions
+     *            maximum number of the latest versions returned for every entity, 0 to return all versions
+     * @return histories in the order of guids
+     * @since 1.8
+     */
+    public Iterable<MobeelizerConflictHistory> getConflictHistory(final String model, final Collection<String> guids,
+            final int latestVersions) {
+        return getSyncService().getConflictHistory(model, guids, latestVersions, syncExecutor);
+    }
+
+    /**
+     * Gets the entity kept in the local store, without connecting to the cloud. The entity is in the state received in the last
+     * confirmed synchronization.
+     * 
+     * @param model
+     *            model name
+     * @param guid
+     *            guid of the entity
+     * @return entity or null if it is not kept in the local store
+     * @since 1.8
+     * @see MobeelizerConfiguration#setLocalStore(boolean)
+     */
+    public Object getLocalEntity(final String model, final String guid) {
+        MobeelizerJsonEntity entity = getLocalStore().get(model, guid);
+        return entity == null ? null : syncService.getEntityFromJsonEntity(entity);
+    }
+
+    /**
+     * Gets all entities of the model kept in the local store, without connecting to the cloud.
+     * 
+     * @param model
+     *            model name
+     * @return entities
+     * @since 1.8
+     * @see MobeelizerConfiguration#setLocalStore(boolean)
+     */
+    public List<Object> getLocalEntities(final String model) {
+        return toEntities(getLocalStore().getAll(model));
+    }
+
+    /**
+     * Finds entities kept in the local store with given value of the field, without connecting to the cloud. The field must be
+     * indexed.
+     * 
+     * @param model
+     *            model name
+     * @param field
+     *            field name
+     * @param value
+     *            value of the field, null to find entities without the value
+     * @return entities
+     * @since 1.8
+     * @see MobeelizerConfiguration#addLocalStoreIndex(String, String)
+     */
+    public List<Object> findLocalEntities(final String model, final String field, final String value) {
+        return toEntities(getLocalStore().find(model, field, value));
+    }
+
+    private MobeelizerLocalStore getLocalStore() {
+        getSyncService();
+        if (localStore == null) {
+            throw new IllegalStateException("Local store must be enabled in configuration.");
+        }
+        return localStore;
+    }
+
+    private List<Object> toEntities(final List<MobeelizerJsonEntity> entities) {
+        List<Object> result = new ArrayList<Object>(entities.size());
+        for (MobeelizerJsonEntity entity : entities) {
+            result.add(syncService.getEntityFromJsonEntity(entity));
+        }
+        return result;
     }
 
     /**
@@ -497,23 +1024,86 @@ public class Mobeelizer {
         sendRemoteNotification(notification, null, group, device);
     }
 
+    /**
+     * Send many remote notifications in the background. Notifications with the same content and device are sent to many users
+     * with a single request and requests are sent in parallel.
+     * 
+     * @param notifications
+     *            notifications to send, read once in the background
+     * @return future with errors of the notifications that have not been sent, empty if all notifications have been sent
+     * @since 1.8
+     * @see MobeelizerConfiguration#setNotificationBatchSize(int)
+     * @see MobeelizerConfiguration#setNotificationConcurrency(int)
+     */
+    public Future<Map<MobeelizerRemoteNotification, MobeelizerOperationError>> sendRemoteNotifications(
+            final Iterable<MobeelizerRemoteNotification> notifications) {
+        return syncExecutor.submit(new MobeelizerNotificationSender(connectionService, connectionGuard, syncExecutor,
+                notifications, configuration.getNotificationBatchSize(), configuration.getNotificationConcurrency()));
+    }
+
     private void sendRemoteNotification(final Map<String, String> notification, final List<String> users, final String group,
             final String device) {
-        MobeelizerOperationError error = connectionService.sendRemoteNotification(device, group, users, notification);
+        MobeelizerOperationError error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.sendRemoteNotification(device, group, users, notification);
+            }
+
+        });
         if (error != null) {
             throw new IllegalStateException("Cannot send remote notification: " + error.getMessage());
         }
     }
 
+    private MobeelizerAuthenticateResponse authenticate(final String login, final String password,
+            final String pushNotificationUrl) {
+        try {
+            return connectionGuard.execute(true, new MobeelizerConnectionGuard.Operation<MobeelizerAuthenticateResponse>() {
+
+                @Override
+                MobeelizerAuthenticateResponse execute() {
+                    if (pushNotificationUrl != null) {
+                        return connectionService.authenticate(login, password, "http", pushNotificationUrl);
+                    } else {
+                        return connectionService.authenticate(login, password);
+                    }
+                }
+
+                @Override
+                boolean isConnectionFailure(final MobeelizerAuthenticateResponse result) {
+                    return result != null && MobeelizerConnectionGuard.isConnectionError(result.getError());
+                }
+
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("User with login " + login + " cannot be authorized: " + e.getMessage(), e);
+        }
+    }
+
     void registerForRemoteNotifications(final String token) throws IOException {
-        MobeelizerOperationError error = connectionService.registerForRemoteNotifications(token);
+        MobeelizerOperationError error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.registerForRemoteNotifications(token);
+            }
+
+        });
         if (error != null) {
             throw new IllegalStateException("Cannot register for remote notifications: " + error.getMessage());
         }
     }
 
     void unregisterForRemoteNotifications(final String token) throws IOException {
-        MobeelizerOperationError error = connectionService.unregisterForRemoteNotifications(token);
+        MobeelizerOperationError error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.unregisterForRemoteNotifications(token);
+            }
+
+        });
         if (error != null) {
             throw new IllegalStateException("Cannot unregister from remote notifications: " + error.getMessage());
         }
@@ -0,0 +1,197 @@
+package com.mobeelizer.java;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Roles of the authenticated users, shared by all instances connected to the same cloud. Entries expire after the time to live.
+ * Passwords are kept only as SHA-256 digests, salted with the random salt of the cache and the login. Entries are indexed by
+ * login, so updating or deleting the user evicts all its entries, also the ones added by authentications that started before the
+ * eviction. Expired entries are purged at most once per purge interval.
+ */
+class MobeelizerAuthenticationCache {
+
+    private static final ConcurrentMap<String, Login> LOGINS = new ConcurrentHashMap<String, Login>();
+
+    private static final long PURGE_INTERVAL = 60 * 1000L;
+
+    /**
+     * Time for which the eviction is remembered, longer than any authentication that started before it.
+     */
+    private static final long EVICTION_TIME = 10 * 60 * 1000L;
+
+    private static final AtomicLong NEXT_PURGE = new AtomicLong();
+
+    private static final byte[] SALT = new byte[16];
+
+    static {
+        new SecureRandom().nextBytes(SALT);
+    }
+
+    private final String prefix;
+
+    private final long ttl;
+
+    MobeelizerAuthenticationCache(final String url, final String instance, final long ttl) {
+        prefix = url + "\n" + instance + "\n";
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets the role of the user authenticated before with given password.
+     *
+     * @return role or null if the user has not been authenticated or the entry has expired
+     */
+    String getRole(final String login, final String password) {
+        if (ttl <= 0) {
+            return null;
+        }
+        Login entries = LOGINS.get(prefix + login);
+        return entries != null ? entries.getRole(digest(login, password), System.currentTimeMillis()) : null;
+    }
+
+    /**
+     * Adds the role of the user authenticated with given password.
+     *
+     * @param authenticated
+     *            time when the authentication started, the role is not added if the user has been evicted since then
+     */
+    void put(final String login, final String password, final String role, final long authenticated) {
+        if (ttl <= 0 || role == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        purge(now);
+        getLogin(login).put(digest(login, password), role, authenticated, now + ttl);
+    }
+
+    /**
+     * Removes all entries of the user, after the user has been changed or deleted. The cache is shared, so entries are evicted
+     * also when this instance does not use it.
+     */
+    void evict(final String login) {
+        long now = System.currentTimeMillis();
+        purge(now);
+        getLogin(login).evict(now);
+    }
+
+    /**
+     * Removes expired entries and forgotten evictions, if the purge interval has passed since the last purge.
+     */
+    private static void purge(final long now) {
+        long next = NEXT_PURGE.get();
+        if (now < next || !NEXT_PURGE.compareAndSet(next, now + PURGE_INTERVAL)) {
+            return;
+        }
+        for (Iterator<Login> i = LOGINS.values().iterator(); i.hasNext();) {
+            if (i.next().purge(now)) {
+                i.remove();
+            }
+        }
+    }
+
+    private Login getLogin(final String login) {
+        String key = prefix + login;
+        Login entries = LOGINS.get(key);
+        if (entries == null) {
+            Login created = new Login();
+            entries = LOGINS.putIfAbsent(key, created);
+            if (entries == null) {
+                entries = created;
+            }
+        }
+        return entries;
+    }
+
+    private String digest(final String login, final String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(SALT);
+            digest.update((prefix + login + "\n").getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(password.getBytes("UTF-8"))) {
+                sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Entries of the single user, by digests of the passwords.
+     */
+    private static class Login {
+
+        private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+        private long evicted;
+
+        synchronized String getRole(final String digest, final long now) {
+            Entry entry = entries.get(digest);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(now)) {
+                entries.remove(digest);
+                return null;
+            }
+            return entry.role;
+        }
+
+        synchronized void put(final String digest, final String role, final long authenticated, final long expires) {
+            if (authenticated <= evicted) {
+                return;
+            }
+            entries.put(digest, new Entry(role, expires));
+        }
+
+        synchronized void evict(final long now) {
+            entries.clear();
+            evicted = now;
+        }
+
+        /**
+         * Removes the expired entries.
+         *
+         * @return true if the user has no entries and no authentication started before the eviction can be running
+         */
+        synchronized boolean purge(final long now) {
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+                if (i.next().isExpired(now)) {
+                    i.remove();
+                }
+            }
+            return entries.isEmpty() && now - evicted >= EVICTION_TIME;
+        }
+
+    }
+
+    private static class Entry {
+
+        private final String role;
+
+        private final long expires;
+
+        Entry(final String role, final long expires) {
+            this.role = role;
+            this.expires = expires;
+        }
+
+        boolean isExpired(final long now) {
+            return now >= expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.mobeelizer.java;
+
+/**
+ * Callback receiving the entities of the synchronization grouped by model in batches. Each batch can be read as entities or as
+ * arrays of field values, which can be passed to the batch insert without creating an object per entity.
+ * 
+ * @since 1.8
+ * @see MobeelizerConfiguration#setModelBatchSize(int)
+ */
+public interface MobeelizerBatchSyncCallback extends MobeelizerSyncCallback {
+
+    /**
+     * Method invoked for every batch of the downloaded entities of the single model. All batches are delivered before
+     * {@link #onSyncFinishedWithSuccess(Iterable, Iterable, Iterable, MobeelizerConfirmSyncCallback)} is invoked with no entities.
+     * 
+     * @param batch
+     *            entities of the single model
+     * @since 1.8
+     */
+    void onModelBatch(final MobeelizerModelBatch batch);
+
+}
@@ -1,7 +1,13 @@
 package com.mobeelizer.java;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import com.mobeelizer.java.api.MobeelizerMode;
 
@@ -32,6 +38,56 @@ public class MobeelizerConfiguration {
 
 	private String pushNotificationUrl;
 
+	private ExecutorService syncExecutor;
+
+	private File stateDirectory;
+
+	private long syncBatchWindow = 100;
+
+	private int syncBatchSize = 1000;
+
+	private MobeelizerSyncListener syncListener;
+
+	private ExecutorService decodeExecutor;
+
+	private int decodeChunkSize = 512;
+
+	private int modelBatchSize = MobeelizerSyncService.DEFAULT_MODEL_BATCH_SIZE;
+
+	private boolean deltaSync;
+
+	private boolean fileDeduplication;
+
+	private boolean localStore;
+
+	private Map<String, Set<String>> localStoreIndexes = new HashMap<String, Set<String>>();
+
+	private int connectTimeout;
+
+	private int readTimeout;
+
+	private int maxRetries;
+
+	private long retryBackoff = 500;
+
+	private int circuitBreakerThreshold;
+
+	private long circuitBreakerTimeout = 30000;
+
+	private boolean asyncAuthentication;
+
+	private long authenticationCacheTtl;
+
+	private long directoryCacheTtl;
+
+	private File spillDirectory;
+
+	private int spillThreshold = MobeelizerSpillStorage.DEFAULT_MEMORY_THRESHOLD;
+
+	private int notificationBatchSize = 100;
+
+	private int notificationConcurrency = 4;
+
 	InputStream getDefinition() {
 		return definition;
 	}
@@ -176,4 +232,567 @@ public class MobeelizerConfiguration {
 		return pushNotificationUrl;
 	}
 
+	ExecutorService getSyncExecutor() {
+		return syncExecutor;
+	}
+
+	/**
+	 * Sets the executor that runs asynchronous synchronizations. Its size
+	 * limits how many synchronizations are in progress at the same time. Each
+	 * synchronization holds a thread also while the server processes the
+	 * ticket, so the pool should be sized for the number of tickets expected
+	 * to wait at once rather than for the number of CPUs. By default the pool
+	 * shared by all Mobeelizer instances is used.
+	 * 
+	 * @param syncExecutor
+	 *            executor
+	 * @since 1.8
+	 */
+	public void setSyncExecutor(final ExecutorService syncExecutor) {
+		this.syncExecutor = syncExecutor;
+	}
+
+	File getStateDirectory() {
+		return stateDirectory;
+	}
+
+	/**
+	 * Sets the directory where the local synchronization state is kept. When
+	 * set, the ticket and the downloaded data of the synchronization are kept
+	 * there until the synchronization is confirmed, so it can be resumed
+	 * after restart using {@link Mobeelizer#resumeSync(MobeelizerSyncCallback)}.
+	 * Only one {@link Mobeelizer} for the same instance and user can use the
+	 * state directory at a time, authentication of another one, in this or
+	 * another process, fails until the first one has been garbage collected
+	 * or its process has stopped.
+	 * 
+	 * @param stateDirectory
+	 *            state directory
+	 * @since 1.8
+	 */
+	public void setStateDirectory(final File stateDirectory) {
+		this.stateDirectory = stateDirectory;
+	}
+
+	long getSyncBatchWindow() {
+		return syncBatchWindow;
+	}
+
+	/**
+	 * Sets the time in milliseconds during which synchronizations queued with
+	 * {@link Mobeelizer#syncBatched(Iterable, Iterable, MobeelizerSyncCallback)}
+	 * are collected into a single synchronization. By default 100 ms is set.
+	 * 
+	 * @param syncBatchWindow
+	 *            batch window in milliseconds
+	 * @throws IllegalArgumentException
+	 *             if the window is negative
+	 * @since 1.8
+	 */
+	public void setSyncBatchWindow(final long syncBatchWindow) {
+		if (syncBatchWindow < 0) {
+			throw new IllegalArgumentException("Batch window must not be negative.");
+		}
+		this.syncBatchWindow = syncBatchWindow;
+	}
+
+	int getSyncBatchSize() {
+		return syncBatchSize;
+	}
+
+	/**
+	 * Sets the number of entities and files after which the batched
+	 * synchronization is started without waiting for the end of the batch
+	 * window. By default 1000 is set.
+	 * 
+	 * @param syncBatchSize
+	 *            batch size
+	 * @throws IllegalArgumentException
+	 *             if the size is not positive
+	 * @since 1.8
+	 */
+	public void setSyncBatchSize(final int syncBatchSize) {
+		if (syncBatchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive.");
+		}
+		this.syncBatchSize = syncBatchSize;
+	}
+
+	MobeelizerSyncListener getSyncListener() {
+		return syncListener;
+	}
+
+	/**
+	 * Sets the listener notified about durations of the synchronization
+	 * phases, transferred bytes and number of entities and files.
+	 * 
+	 * @param syncListener
+	 *            listener
+	 * @since 1.8
+	 * @see MobeelizerSyncHistogram
+	 */
+	public void setSyncListener(final MobeelizerSyncListener syncListener) {
+		this.syncListener = syncListener;
+	}
+
+	ExecutorService getDecodeExecutor() {
+		return decodeExecutor;
+	}
+
+	/**
+	 * Sets the executor that converts downloaded entities in parallel. The
+	 * entities are still returned to the callback in the order they were
+	 * downloaded. Chunks that the executor has not started yet are converted
+	 * by the thread iterating them, so the executor may be the same as the
+	 * synchronization executor. By default entities are converted by the
+	 * thread iterating them.
+	 * 
+	 * @param decodeExecutor
+	 *            executor
+	 * @since 1.8
+	 */
+	public void setDecodeExecutor(final ExecutorService decodeExecutor) {
+		this.decodeExecutor = decodeExecutor;
+	}
+
+	int getDecodeChunkSize() {
+		return decodeChunkSize;
+	}
+
+	/**
+	 * Sets the number of entities converted by a single task of the decode
+	 * executor. By default 512 is set.
+	 * 
+	 * @param decodeChunkSize
+	 *            chunk size
+	 * @throws IllegalArgumentException
+	 *             if the size is not positive
+	 * @since 1.8
+	 * @see #setDecodeExecutor(ExecutorService)
+	 */
+	public void setDecodeChunkSize(final int decodeChunkSize) {
+		if (decodeChunkSize <= 0) {
+			throw new IllegalArgumentException("Decode chunk size must be positive.");
+		}
+		this.decodeChunkSize = decodeChunkSize;
+	}
+
+	int getModelBatchSize() {
+		return modelBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of entities in the single batch delivered to
+	 * the {@link MobeelizerBatchSyncCallback}. By default 1000 is set.
+	 * 
+	 * @param modelBatchSize
+	 *            batch size
+	 * @throws IllegalArgumentException
+	 *             if the size is not positive
+	 * @since 1.8
+	 */
+	public void setModelBatchSize(final int modelBatchSize) {
+		if (modelBatchSize <= 0) {
+			throw new IllegalArgumentException("Model batch size must be positive.");
+		}
+		this.modelBatchSize = modelBatchSize;
+	}
+
+	boolean isDeltaSync() {
+		return deltaSync;
+	}
+
+	/**
+	 * Enables skipping entities that have not changed since they were last
+	 * sent to the cloud or received from it. Changed entities are always sent
+	 * with all fields. Hashes of the entities are kept in the state
+	 * directory, which must be set. By default all entities are sent.
+	 * 
+	 * @param deltaSync
+	 *            true to skip unchanged entities
+	 * @since 1.8
+	 * @see #setStateDirectory(File)
+	 */
+	public void setDeltaSync(final boolean deltaSync) {
+		this.deltaSync = deltaSync;
+	}
+
+	boolean isFileDeduplication() {
+		return fileDeduplication;
+	}
+
+	/**
+	 * Enables skipping files whose content has already been sent with the
+	 * same guid in the confirmed synchronization. Digests of the sent files
+	 * are kept in the state directory, which must be set. By default all
+	 * files are sent.
+	 * 
+	 * @param fileDeduplication
+	 *            true to skip files already sent
+	 * @since 1.8
+	 * @see #setStateDirectory(File)
+	 */
+	public void setFileDeduplication(final boolean fileDeduplication) {
+		this.fileDeduplication = fileDeduplication;
+	}
+
+	boolean isLocalStore() {
+		return localStore;
+	}
+
+	/**
+	 * Enables keeping entities received in the confirmed synchronizations in
+	 * the state directory, which must be set. The kept entities can be read
+	 * without connecting to the cloud using
+	 * {@link Mobeelizer#getLocalEntity(String, String)} and
+	 * {@link Mobeelizer#findLocalEntities(String, String, String)}. By
+	 * default entities are not kept.
+	 * 
+	 * Entities are read from the file when they are requested. The memory
+	 * holds the guid and the position in the file of every kept entity, and
+	 * the values of the indexed fields. Entities of the synchronization are
+	 * written to the temporary file in the spill directory until they are
+	 * saved.
+	 * 
+	 * @param localStore
+	 *            true to keep received entities
+	 * @since 1.8
+	 * @see #setStateDirectory(File)
+	 * @see #addLocalStoreIndex(String, String)
+	 */
+	public void setLocalStore(final boolean localStore) {
+		this.localStore = localStore;
+	}
+
+	Map<String, Set<String>> getLocalStoreIndexes() {
+		return localStoreIndexes;
+	}
+
+	/**
+	 * Adds the index on the field of the model to the local store, so entities
+	 * can be found by the value of the field using
+	 * {@link Mobeelizer#findLocalEntities(String, String, String)}.
+	 * 
+	 * @param model
+	 *            model name
+	 * @param field
+	 *            field name
+	 * @since 1.8
+	 * @see #setLocalStore(boolean)
+	 */
+	public void addLocalStoreIndex(final String model, final String field) {
+		Set<String> fields = localStoreIndexes.get(model);
+		if (fields == null) {
+			fields = new HashSet<String>();
+			localStoreIndexes.put(model, fields);
+		}
+		fields.add(field);
+	}
+
+	int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the timeout in milliseconds until the connection to the cloud is
+	 * established. By default the timeout of the HTTP client is used.
+	 * 
+	 * @param connectTimeout
+	 *            connect timeout in milliseconds
+	 * @since 1.8
+	 */
+	public void setConnectTimeout(final int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets the timeout in milliseconds for waiting for data from the cloud.
+	 * By default the timeout of the HTTP client is used.
+	 * 
+	 * @param readTimeout
+	 *            read timeout in milliseconds
+	 * @since 1.8
+	 */
+	public void setReadTimeout(final int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Sets how many times the idempotent call that failed to connect to the
+	 * cloud is retried: authentication, getting users and groups, waiting for the
+	 * synchronization and downloading its data, getting the conflict
+	 * history. Calls that change data and errors returned by the cloud are
+	 * never retried. By default calls are not retried.
+	 * 
+	 * @param maxRetries
+	 *            number of retries
+	 * @throws IllegalArgumentException
+	 *             if the number is negative
+	 * @since 1.8
+	 * @see #setRetryBackoff(long)
+	 */
+	public void setMaxRetries(final int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("Number of retries must not be negative.");
+		}
+		this.maxRetries = maxRetries;
+	}
+
+	long getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	/**
+	 * Sets the base delay in milliseconds before the retry. The delay is
+	 * doubled with every retry and randomized between zero and that value.
+	 * By default 500 ms is set.
+	 * 
+	 * @param retryBackoff
+	 *            base delay in milliseconds
+	 * @since 1.8
+	 */
+	public void setRetryBackoff(final long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive calls that failed to connect to the cloud
+	 * after which calls fail immediately, without connecting to the cloud,
+	 * until the circuit breaker timeout elapses. Errors returned by the cloud
+	 * are not counted. Every Mobeelizer instance has its own circuit breaker.
+	 * By default the circuit breaker is disabled.
+	 * 
+	 * @param circuitBreakerThreshold
+	 *            number of failed calls
+	 * @since 1.8
+	 * @see #setCircuitBreakerTimeout(long)
+	 */
+	public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	long getCircuitBreakerTimeout() {
+		return circuitBreakerTimeout;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which the open circuit breaker lets
+	 * a single call through to check if the cloud is available again. By
+	 * default 30000 ms is set.
+	 * 
+	 * @param circuitBreakerTimeout
+	 *            open time in milliseconds
+	 * @since 1.8
+	 */
+	public void setCircuitBreakerTimeout(final long circuitBreakerTimeout) {
+		this.circuitBreakerTimeout = circuitBreakerTimeout;
+	}
+
+	boolean isAsyncAuthentication() {
+		return asyncAuthentication;
+	}
+
+	/**
+	 * Enables authentication in the background. When enabled, creating
+	 * {@link Mobeelizer} does not connect to the cloud. The user is
+	 * authenticated on the synchronization executor and the methods that
+	 * need the user's role wait until it is done. When the authentication
+	 * fails, these methods throw the exception and the next call tries to
+	 * authenticate again. By default the user is authenticated while creating
+	 * {@link Mobeelizer}.
+	 * 
+	 * @param asyncAuthentication
+	 *            true to authenticate in the background
+	 * @since 1.8
+	 */
+	public void setAsyncAuthentication(final boolean asyncAuthentication) {
+		this.asyncAuthentication = asyncAuthentication;
+	}
+
+	long getAuthenticationCacheTtl() {
+		return authenticationCacheTtl;
+	}
+
+	/**
+	 * Sets the time in milliseconds for which the role of the authenticated
+	 * user is remembered. Creating {@link Mobeelizer} and calling
+	 * {@link Mobeelizer#authenticate(String, String)} for the user with the
+	 * same login and password do not connect to the cloud during that time.
+	 * The cache is shared by all instances connected to the same instance of
+	 * the cloud. Roles of the user are forgotten when the user is updated or
+	 * deleted with {@link Mobeelizer}, changes made elsewhere are noticed only
+	 * after the time to live. It is not used when the push notification url
+	 * is set. By default roles are not remembered.
+	 * 
+	 * @param authenticationCacheTtl
+	 *            time to live in milliseconds
+	 * @since 1.8
+	 */
+	public void setAuthenticationCacheTtl(final long authenticationCacheTtl) {
+		this.authenticationCacheTtl = authenticationCacheTtl;
+	}
+
+	long getDirectoryCacheTtl() {
+		return directoryCacheTtl;
+	}
+
+	/**
+	 * Sets the time in milliseconds for which users and groups downloaded
+	 * from the cloud are cached. Users created, updated and deleted by
+	 * {@link Mobeelizer} are updated in the cache immediately. The cache is
+	 * needed to page through users with
+	 * {@link Mobeelizer#getUsers(int, int)} without downloading all users for
+	 * every page. By default users and groups are not cached.
+	 * 
+	 * @param directoryCacheTtl
+	 *            time to live in milliseconds
+	 * @since 1.8
+	 */
+	public void setDirectoryCacheTtl(final long directoryCacheTtl) {
+		this.directoryCacheTtl = directoryCacheTtl;
+	}
+
+	File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets the directory for the temporary files of the synchronization. The
+	 * files are created in its mobeelizer-spill subdirectory, so it can be the
+	 * same as the state directory. Files left in the subdirectory by previous
+	 * runs for more than a day are deleted when the first {@link Mobeelizer}
+	 * using the directory is created. By default
+	 * the temporary files are created in the default temporary directory and
+	 * are not cleaned up.
+	 * 
+	 * @param spillDirectory
+	 *            spill directory
+	 * @since 1.8
+	 */
+	public void setSpillDirectory(final File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the size in bytes up to which the temporary data of the SDK is
+	 * kept in memory instead of the spill directory. Data exchanged with the
+	 * cloud is always kept in files. By default 64 KB is set, 0 keeps all
+	 * data in files.
+	 * 
+	 * @param spillThreshold
+	 *            size in bytes
+	 * @throws IllegalArgumentException
+	 *             if the size is negative
+	 * @since 1.8
+	 */
+	public void setSpillThreshold(final int spillThreshold) {
+		if (spillThreshold < 0) {
+			throw new IllegalArgumentException("Spill threshold must not be negative.");
+		}
+		this.spillThreshold = spillThreshold;
+	}
+
+	int getNotificationBatchSize() {
+		return notificationBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of users to whom the same notification is sent
+	 * with a single request by
+	 * {@link Mobeelizer#sendRemoteNotifications(Iterable)}. By default 100 is
+	 * set.
+	 * 
+	 * @param notificationBatchSize
+	 *            number of users
+	 * @throws IllegalArgumentException
+	 *             if the size is not positive
+	 * @since 1.8
+	 */
+	public void setNotificationBatchSize(final int notificationBatchSize) {
+		if (notificationBatchSize <= 0) {
+			throw new IllegalArgumentException("Notification batch size must be positive.");
+		}
+		this.notificationBatchSize = notificationBatchSize;
+	}
+
+	int getNotificationConcurrency() {
+		return notificationConcurrency;
+	}
+
+	/**
+	 * Sets the maximum number of requests sent at the same time by
+	 * {@link Mobeelizer#sendRemoteNotifications(Iterable)}. By default 4 is
+	 * set.
+	 * 
+	 * @param notificationConcurrency
+	 *            number of requests
+	 * @throws IllegalArgumentException
+	 *             if the number is not positive
+	 * @since 1.8
+	 */
+	public void setNotificationConcurrency(final int notificationConcurrency) {
+		if (notificationConcurrency <= 0) {
+			throw new IllegalArgumentException("Notification concurrency must be positive.");
+		}
+		this.notificationConcurrency = notificationConcurrency;
+	}
+
+	MobeelizerConfiguration copy() {
+		MobeelizerConfiguration copy = new MobeelizerConfiguration();
+		copy.definition = definition;
+		copy.device = device;
+		copy.deviceIdentifier = deviceIdentifier;
+		copy.packageName = packageName;
+		copy.mode = mode;
+		copy.instance = instance;
+		copy.user = user;
+		copy.password = password;
+		copy.url = url;
+		copy.pushNotificationUrl = pushNotificationUrl;
+		copy.syncExecutor = syncExecutor;
+		copy.stateDirectory = stateDirectory;
+		copy.syncBatchWindow = syncBatchWindow;
+		copy.syncBatchSize = syncBatchSize;
+		copy.syncListener = syncListener;
+		copy.decodeExecutor = decodeExecutor;
+		copy.decodeChunkSize = decodeChunkSize;
+		copy.modelBatchSize = modelBatchSize;
+		copy.deltaSync = deltaSync;
+		copy.fileDeduplication = fileDeduplication;
+		copy.localStore = localStore;
+		for (Map.Entry<String, Set<String>> index : localStoreIndexes.entrySet()) {
+			copy.localStoreIndexes.put(index.getKey(), new HashSet<String>(index.getValue()));
+		}
+		copy.connectTimeout = connectTimeout;
+		copy.readTimeout = readTimeout;
+		copy.maxRetries = maxRetries;
+		copy.retryBackoff = retryBackoff;
+		copy.circuitBreakerThreshold = circuitBreakerThreshold;
+		copy.circuitBreakerTimeout = circuitBreakerTimeout;
+		copy.asyncAuthentication = asyncAuthentication;
+		copy.authenticationCacheTtl = authenticationCacheTtl;
+		copy.directoryCacheTtl = directoryCacheTtl;
+		copy.spillDirectory = spillDirectory;
+		copy.spillThreshold = spillThreshold;
+		copy.notificationBatchSize = notificationBatchSize;
+		copy.notificationConcurrency = notificationConcurrency;
+		return copy;
+	}
+
 }
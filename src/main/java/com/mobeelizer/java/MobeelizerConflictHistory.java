@@ -0,0 +1,38 @@
+package com.mobeelizer.java;
+
+import com.mobeelizer.java.api.MobeelizerEntityVersion;
+import com.mobeelizer.java.api.MobeelizerOperationError;
+
+/**
+ * Versions of the single conflicted entity.
+ * 
+ * @since 1.8
+ * @see Mobeelizer#getConflictHistory(String, java.util.Collection, int)
+ */
+public interface MobeelizerConflictHistory {
+
+    /**
+     * Gets guid of the conflicted entity.
+     * 
+     * @return guid
+     * @since 1.8
+     */
+    String getGuid();
+
+    /**
+     * Gets versions of the conflicted entity, in the order returned by the cloud. Entities are converted while iterating.
+     * 
+     * @return versions, empty if getting the history failed
+     * @since 1.8
+     */
+    Iterable<MobeelizerEntityVersion> getVersions();
+
+    /**
+     * Gets error of getting the history.
+     * 
+     * @return error or null if the history has been downloaded
+     * @since 1.8
+     */
+    MobeelizerOperationError getError();
+
+}
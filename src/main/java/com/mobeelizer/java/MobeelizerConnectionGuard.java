@@ -0,0 +1,257 @@
+package com.mobeelizer.java;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mobeelizer.java.api.MobeelizerOperationError;
+import com.mobeelizer.java.errors.MobeelizerOperationErrorImpl;
+import com.mobeelizer.java.errors.MobeelizerOperationStatus;
+
+/**
+ * Executes calls of the connection service with retries and the circuit breaker. Idempotent calls that fail to connect to the
+ * server are retried with the jittered exponential backoff. Connection failures are counted by the circuit breaker of the guard.
+ * After the given number of consecutive failures the circuit breaker fails all calls without connecting to the server until the
+ * open time elapses, then lets a single call through to check the server.
+ *
+ * The connection service catches connection errors and returns them as errors with the connection error codes, so these errors
+ * are connection failures as well as IOException, thrown directly or as the cause of the runtime exception. Other errors
+ * returned by the cloud, such as the wrong password or the existing user, mean that the server has answered: they are returned
+ * to the caller without retrying and they close the circuit breaker.
+ */
+class MobeelizerConnectionGuard {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerConnectionGuard.class);
+
+    private static final long MAX_BACKOFF = 30000;
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Codes of the errors returned by the connection service when it cannot connect to the server or read the response.
+     */
+    private static final Set<String> CONNECTION_ERROR_CODES = new HashSet<String>(Arrays.asList("exception",
+            "connectionFailure", "missingConnection"));
+
+    private final String url;
+
+    private final int maxRetries;
+
+    private final long backoff;
+
+    private final CircuitBreaker breaker;
+
+    MobeelizerConnectionGuard(final String url, final int maxRetries, final long backoff, final int breakerThreshold,
+            final long breakerTimeout) {
+        this.url = url == null ? "default" : url;
+        this.maxRetries = maxRetries;
+        this.backoff = backoff;
+        breaker = new CircuitBreaker(breakerThreshold, breakerTimeout);
+    }
+
+    /**
+     * Creates guard executing calls once, without the circuit breaker.
+     */
+    MobeelizerConnectionGuard() {
+        url = "default";
+        maxRetries = 0;
+        backoff = 0;
+        breaker = new CircuitBreaker(0, 0);
+    }
+
+    <T> T execute(final boolean idempotent, final Operation<T> operation) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            if (!breaker.allowRequest()) {
+                throw new IOException("Server " + url + " is unavailable, circuit breaker is open");
+            }
+
+            T result;
+
+            try {
+                result = operation.execute();
+            } catch (IOException e) {
+                breaker.failure();
+                if (!retry(idempotent, attempt, e.getMessage())) {
+                    throw e;
+                }
+                continue;
+            } catch (RuntimeException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    breaker.completed();
+                    throw e;
+                }
+                breaker.failure();
+                if (!retry(idempotent, attempt, e.getMessage())) {
+                    throw e;
+                }
+                continue;
+            }
+
+            if (operation.isConnectionFailure(result)) {
+                breaker.failure();
+                if (!retry(idempotent, attempt, "connection error returned by the connection service")) {
+                    return result;
+                }
+                continue;
+            }
+
+            breaker.success();
+            return result;
+        }
+    }
+
+    <T> MobeelizerOperationStatus<T> executeStatus(final boolean idempotent, final StatusOperation<T> operation) {
+        try {
+            return execute(idempotent, operation);
+        } catch (IOException e) {
+            return new MobeelizerOperationStatus<T>(MobeelizerOperationErrorImpl.exception(e));
+        }
+    }
+
+    MobeelizerOperationError executeError(final boolean idempotent, final ErrorOperation operation) {
+        try {
+            return execute(idempotent, operation);
+        } catch (IOException e) {
+            return MobeelizerOperationErrorImpl.exception(e);
+        }
+    }
+
+    private boolean retry(final boolean idempotent, final int attempt, final String reason) {
+        if (!idempotent || attempt >= maxRetries) {
+            return false;
+        }
+
+        long limit = Math.min(MAX_BACKOFF, backoff << Math.min(attempt, 16));
+        long delay;
+        synchronized (RANDOM) {
+            delay = (long) (RANDOM.nextDouble() * limit);
+        }
+
+        logger.info("Call to " + url + " failed (" + reason + "), retry " + (attempt + 1) + " of " + maxRetries + " in " + delay
+                + " ms");
+
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the error returned by the connection service is the connection failure.
+     */
+    static boolean isConnectionError(final MobeelizerOperationError error) {
+        return error != null && CONNECTION_ERROR_CODES.contains(error.getCode());
+    }
+
+    /**
+     * Call of the connection service.
+     */
+    abstract static class Operation<T> {
+
+        abstract T execute() throws IOException;
+
+        /**
+         * Checks if the result reports the connection failure instead of the answer of the server.
+         */
+        boolean isConnectionFailure(final T result) {
+            return false;
+        }
+
+    }
+
+    /**
+     * Call of the connection service returning the operation status.
+     */
+    abstract static class StatusOperation<T> extends Operation<MobeelizerOperationStatus<T>> {
+
+        @Override
+        abstract MobeelizerOperationStatus<T> execute();
+
+        @Override
+        boolean isConnectionFailure(final MobeelizerOperationStatus<T> result) {
+            return result != null && isConnectionError(result.getError());
+        }
+
+    }
+
+    /**
+     * Call of the connection service returning the operation error.
+     */
+    abstract static class ErrorOperation extends Operation<MobeelizerOperationError> {
+
+        @Override
+        abstract MobeelizerOperationError execute();
+
+        @Override
+        boolean isConnectionFailure(final MobeelizerOperationError result) {
+            return isConnectionError(result);
+        }
+
+    }
+
+    private static class CircuitBreaker {
+
+        private final int threshold;
+
+        private final long timeout;
+
+        private int failures;
+
+        private long openUntil;
+
+        private boolean trial;
+
+        CircuitBreaker(final int threshold, final long timeout) {
+            this.threshold = threshold;
+            this.timeout = timeout;
+        }
+
+        synchronized boolean allowRequest() {
+            if (threshold <= 0 || failures < threshold) {
+                return true;
+            }
+            if (trial || System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            trial = true;
+            return true;
+        }
+
+        synchronized void success() {
+            failures = 0;
+            trial = false;
+        }
+
+        /**
+         * Finishes the call that has neither succeeded nor failed to connect, letting the next call check the server.
+         */
+        synchronized void completed() {
+            trial = false;
+        }
+
+        synchronized void failure() {
+            if (threshold <= 0) {
+                return;
+            }
+            failures++;
+            if (trial || failures == threshold) {
+                if (!trial) {
+                    logger.warn("Circuit breaker opened after " + failures + " consecutive failures");
+                }
+                trial = false;
+                failures = Math.max(failures, threshold);
+                openUntil = System.currentTimeMillis() + timeout;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.mobeelizer.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mobeelizer.java.api.MobeelizerModel;
+import com.mobeelizer.java.definition.MobeelizerApplicationDefinition;
+import com.mobeelizer.java.definition.MobeelizerDefinitionConverter;
+import com.mobeelizer.java.definition.MobeelizerDefinitionParser;
+
+/**
+ * Cache of parsed and converted definitions shared by all Mobeelizer instances in the JVM. Converted models refer to the classes
+ * of the entities, so they are cached separately for every context class loader. Class loaders are weak keys and models are
+ * softly referenced, so models do not keep unused class loaders in memory.
+ */
+final class MobeelizerDefinitionCache {
+
+    private static final ConcurrentMap<String, MobeelizerApplicationDefinition> APPLICATION_DEFINITIONS = new ConcurrentHashMap<String, MobeelizerApplicationDefinition>();
+
+    private static final Map<ClassLoader, Map<String, SoftReference<Set<MobeelizerModel>>>> MODELS = new WeakHashMap<ClassLoader, Map<String, SoftReference<Set<MobeelizerModel>>>>();
+
+    private MobeelizerDefinitionCache() {
+    }
+
+    /**
+     * Gets the parsed definition for the given XML, parsing it only when the same XML has not been parsed before.
+     */
+    static MobeelizerApplicationDefinition getApplicationDefinition(final InputStream definition) {
+        byte[] content = read(definition);
+        String key = digest(content);
+
+        MobeelizerApplicationDefinition applicationDefinition = APPLICATION_DEFINITIONS.get(key);
+
+        if (applicationDefinition == null) {
+            applicationDefinition = MobeelizerDefinitionParser.parse(new ByteArrayInputStream(content));
+            MobeelizerApplicationDefinition previous = APPLICATION_DEFINITIONS.putIfAbsent(key, applicationDefinition);
+            if (previous != null) {
+                applicationDefinition = previous;
+            }
+        }
+
+        return applicationDefinition;
+    }
+
+    /**
+     * Gets the models converted for the given definition, package and role, converting them only once for the context class
+     * loader.
+     */
+    static Set<MobeelizerModel> getModels(final MobeelizerApplicationDefinition applicationDefinition, final String packageName,
+            final String role) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = MobeelizerDefinitionCache.class.getClassLoader();
+        }
+        String key = applicationDefinition.getDigest() + ":" + packageName + ":" + role;
+
+        Set<MobeelizerModel> models = getModels(classLoader, key);
+
+        if (models == null) {
+            models = Collections.unmodifiableSet(new HashSet<MobeelizerModel>(new MobeelizerDefinitionConverter().convert(
+                    applicationDefinition, packageName, role)));
+            models = putModels(classLoader, key, models);
+        }
+
+        return models;
+    }
+
+    private static Set<MobeelizerModel> getModels(final ClassLoader classLoader, final String key) {
+        synchronized (MODELS) {
+            Map<String, SoftReference<Set<MobeelizerModel>>> models = MODELS.get(classLoader);
+            SoftReference<Set<MobeelizerModel>> reference = models == null ? null : models.get(key);
+            return reference == null ? null : reference.get();
+        }
+    }
+
+    /**
+     * Adds the models, unless they have been added by another thread in the meantime.
+     *
+     * @return cached models
+     */
+    private static Set<MobeelizerModel> putModels(final ClassLoader classLoader, final String key,
+            final Set<MobeelizerModel> models) {
+        synchronized (MODELS) {
+            Map<String, SoftReference<Set<MobeelizerModel>>> loaderModels = MODELS.get(classLoader);
+            if (loaderModels == null) {
+                loaderModels = new HashMap<String, SoftReference<Set<MobeelizerModel>>>();
+                MODELS.put(classLoader, loaderModels);
+            }
+            SoftReference<Set<MobeelizerModel>> previous = loaderModels.get(key);
+            Set<MobeelizerModel> previousModels = previous == null ? null : previous.get();
+            if (previousModels != null) {
+                return previousModels;
+            }
+            loaderModels.put(key, new SoftReference<Set<MobeelizerModel>>(models));
+            return models;
+        }
+    }
+
+    private static byte[] read(final InputStream definition) {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = definition.read(buffer)) > -1) {
+                output.write(buffer, 0, len);
+            }
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read definition: " + e.getMessage(), e);
+        }
+    }
+
+    private static String digest(final byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return toHex(digest.digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.mobeelizer.java;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors shared by all Mobeelizer instances in the JVM.
+ */
+final class MobeelizerExecutors {
+
+    static final int DEFAULT_SYNC_THREADS = 16;
+
+    private static ExecutorService syncExecutor;
+
+    private static ScheduledExecutorService scheduler;
+
+    private MobeelizerExecutors() {
+    }
+
+    static synchronized ExecutorService getDefaultSyncExecutor() {
+        if (syncExecutor == null) {
+            syncExecutor = Executors.newFixedThreadPool(DEFAULT_SYNC_THREADS, new DaemonThreadFactory("mobeelizer-sync"));
+        }
+        return syncExecutor;
+    }
+
+    static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("mobeelizer-scheduler"));
+        }
+        return scheduler;
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private final String prefix;
+
+        DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
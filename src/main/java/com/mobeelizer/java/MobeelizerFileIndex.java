@@ -0,0 +1,317 @@
+package com.mobeelizer.java;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mobeelizer.java.api.MobeelizerFile;
+import com.mobeelizer.java.sync.MobeelizerOutputData;
+
+/**
+ * Digests of the files sent in the confirmed synchronizations, kept in the state directory. Files whose content has already
+ * been sent with the same guid are not sent again. Files deleted by the cloud are removed from the index and the whole index is
+ * cleared after the full synchronization, so such files are sent again.
+ */
+class MobeelizerFileIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerFileIndex.class);
+
+    private static final String CHARSET = "UTF-8";
+
+    private final File indexFile;
+
+    private final MobeelizerSpillStorage spillStorage;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    MobeelizerFileIndex(final File directory, final String name, final MobeelizerSpillStorage spillStorage) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        indexFile = new File(directory, name + ".files");
+        this.spillStorage = spillStorage;
+        load();
+    }
+
+    Changes newChanges() {
+        return new Changes();
+    }
+
+    private synchronized Entry get(final String guid) {
+        return entries.get(guid);
+    }
+
+    private synchronized void commit(final Map<String, Entry> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        entries.putAll(changes);
+        store();
+    }
+
+    /**
+     * Removes the files deleted by the cloud, or all files after the full synchronization.
+     *
+     * @param clear
+     *            true if the index should be cleared
+     */
+    synchronized void removeFiles(final Iterable<String> guids, final boolean clear) {
+        boolean removed = false;
+        if (clear) {
+            removed = !entries.isEmpty();
+            entries.clear();
+        } else if (guids != null) {
+            for (String guid : guids) {
+                removed |= entries.remove(guid) != null;
+            }
+        }
+        if (removed) {
+            store();
+        }
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), CHARSET));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split("\t");
+                    entries.put(columns[0], new Entry(Long.parseLong(columns[1]), Long.parseLong(columns[2]), columns[3]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read file index " + indexFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            entries.clear();
+        } catch (RuntimeException e) {
+            logger.warn("Cannot read file index " + indexFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            entries.clear();
+        }
+    }
+
+    private void store() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET));
+            try {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    writer.write(entry.getKey() + "\t" + entry.getValue().size + "\t" + entry.getValue().lastModified + "\t"
+                            + entry.getValue().digest + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write file index " + indexFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+        if (!tempFile.renameTo(indexFile) && !(indexFile.delete() && tempFile.renameTo(indexFile))) {
+            throw new IllegalStateException("Cannot write file index " + indexFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Gets the local file with the content. Files of the synchronization result are not local, asking them for the file would
+     * copy the content to the temporary file.
+     */
+    private static File getLocalFile(final MobeelizerFile file) {
+        if (file instanceof MobeelizerInputFiles.InputFile) {
+            return null;
+        }
+        try {
+            File localFile = file.getFile();
+            return localFile != null && localFile.isFile() ? localFile : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final String digest;
+
+        Entry(final long size, final long lastModified, final String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+    }
+
+    /**
+     * Input stream computing the digest and the size of the data read through it.
+     */
+    private static class DigestingInputStream extends FilterInputStream {
+
+        private final MessageDigest digest;
+
+        private long size;
+
+        DigestingInputStream(final InputStream input) {
+            super(input);
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b > -1) {
+                digest.update((byte) b);
+                size++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            int len = super.read(buffer, offset, length);
+            if (len > 0) {
+                digest.update(buffer, offset, len);
+                size += len;
+            }
+            return len;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            int len;
+            while (skipped < n && (len = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > -1) {
+                skipped += len;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        String getDigest() {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return sb.toString();
+        }
+
+    }
+
+    /**
+     * Digests of the files sent in the single synchronization, added to the index when the synchronization is confirmed.
+     */
+    class Changes {
+
+        private final Map<String, Entry> changes = new HashMap<String, Entry>();
+
+        /**
+         * Writes the file to the output unless its content has already been sent with the same guid. Unchanged local files are
+         * recognized by the size and the modification time. Other files are read once: new guids are streamed directly to the
+         * output, known guids are spooled to the spill storage while computing the digest.
+         *
+         * @return false if the file has not been written
+         */
+        boolean writeFile(final MobeelizerOutputData outputData, final MobeelizerFile file) throws IOException {
+            String guid = file.getGuid();
+            Entry synced = get(guid);
+            File localFile = getLocalFile(file);
+            long lastModified = localFile != null ? localFile.lastModified() : -1;
+
+            if (synced != null && localFile != null && localFile.length() == synced.size && lastModified == synced.lastModified) {
+                return false;
+            }
+
+            DigestingInputStream input = new DigestingInputStream(file.getInputStream());
+
+            if (synced == null) {
+                try {
+                    outputData.writeFile(guid, input);
+                } finally {
+                    input.close();
+                }
+                changes.put(guid, new Entry(input.size, lastModified, input.getDigest()));
+                return true;
+            }
+
+            MobeelizerSpillStorage.Buffer spool = spillStorage.createBuffer();
+
+            try {
+                try {
+                    try {
+                        byte[] buffer = new byte[8192];
+                        int len;
+                        while ((len = input.read(buffer)) > -1) {
+                            spool.write(buffer, 0, len);
+                        }
+                    } finally {
+                        spool.close();
+                    }
+                } finally {
+                    input.close();
+                }
+
+                Entry current = new Entry(input.size, lastModified, input.getDigest());
+                changes.put(guid, current);
+
+                if (current.size == synced.size && current.digest.equals(synced.digest)) {
+                    return false;
+                }
+
+                InputStream spoolInput = spool.getInputStream();
+                try {
+                    outputData.writeFile(guid, spoolInput);
+                } finally {
+                    spoolInput.close();
+                }
+                return true;
+            } finally {
+                spool.delete();
+            }
+        }
+
+        /**
+         * Forgets the files deleted by the cloud in the same synchronization, so they are not added to the index.
+         */
+        void removeFiles(final Iterable<String> guids) {
+            if (guids != null) {
+                for (String guid : guids) {
+                    changes.remove(guid);
+                }
+            }
+        }
+
+        void commit() {
+            MobeelizerFileIndex.this.commit(changes);
+        }
+
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.mobeelizer.java;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.mobeelizer.java.api.MobeelizerFile;
+import com.mobeelizer.java.sync.MobeelizerInputData;
+
+/**
+ * Files of the synchronization result. The content is read from the downloaded data only when the caller asks for it and it is
+ * copied to a temporary file only when {@link MobeelizerFile#getFile()} is used.
+ */
+class MobeelizerInputFiles implements Iterable<MobeelizerFile> {
+
+    private final MobeelizerInputData inputData;
+
+    private final MobeelizerSpillStorage spillStorage;
+
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    MobeelizerInputFiles(final MobeelizerInputData inputData, final MobeelizerSpillStorage spillStorage) {
+        this.inputData = inputData;
+        this.spillStorage = spillStorage;
+    }
+
+    @Override
+    public Iterator<MobeelizerFile> iterator() {
+        final Iterator<String> iterator = inputData.getFiles().iterator();
+
+        return new Iterator<MobeelizerFile>() {
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public MobeelizerFile next() {
+                return new InputFile(iterator.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    /**
+     * Deletes the temporary files created by {@link MobeelizerFile#getFile()}.
+     */
+    synchronized void close() {
+        for (File file : tempFiles) {
+            spillStorage.delete(file);
+        }
+        tempFiles.clear();
+    }
+
+    private InputStream openFile(final String guid) {
+        try {
+            return inputData.getFile(guid);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot read file " + guid + ": " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized File createTempFile(final String guid) throws IOException {
+        File file = spillStorage.createTempFile("file");
+        tempFiles.add(file);
+
+        InputStream input = openFile(guid);
+        OutputStream output = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = input.read(buffer)) > -1) {
+                output.write(buffer, 0, len);
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+
+        return file;
+    }
+
+    class InputFile implements MobeelizerFile {
+
+        private final String guid;
+
+        private File file;
+
+        InputFile(final String guid) {
+            this.guid = guid;
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return openFile(guid);
+        }
+
+        @Override
+        public String getGuid() {
+            return guid;
+        }
+
+        @Override
+        public synchronized File getFile() {
+            if (file == null) {
+                try {
+                    file = createTempFile(guid);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read file " + guid + ": " + e.getMessage(), e);
+                }
+            }
+            return file;
+        }
+
+    }
+
+}
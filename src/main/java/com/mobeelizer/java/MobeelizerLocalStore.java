@@ -0,0 +1,697 @@
+package com.mobeelizer.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mobeelizer.java.sync.MobeelizerJsonEntity;
+import com.mobeelizer.java.sync.MobeelizerJsonEntity.ConflictState;
+
+/**
+ * Entities received in the synchronizations, kept in the state directory. Only the positions of the entities in the file and
+ * the values of the indexed fields are kept in memory, entities are read from the file when they are requested. Received
+ * entities are saved before the synchronization is confirmed, so they are not lost when saving fails after the cloud has dropped
+ * the data.
+ *
+ * Every entity and removal keeps the order of the synchronization that set it, so entities of the older synchronization saved
+ * after the newer one are ignored. Entities of the synchronization are streamed to the temporary log while they are received,
+ * and copied to the store when the synchronization is saved, without blocking reads. The file is a log with one entity or
+ * removal per line. Changes of the synchronization are appended to it, the whole file is rewritten after the full
+ * synchronization and when the log grows twice as large as the number of entries.
+ */
+class MobeelizerLocalStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerLocalStore.class);
+
+    private static final String DELETED_FIELD = "s_deleted";
+
+    private static final int COMPACT_MIN_LINES = 1000;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final File storeFile;
+
+    private final MobeelizerSpillStorage spillStorage;
+
+    private final Map<String, List<String>> indexedFields = new HashMap<String, List<String>>();
+
+    /**
+     * Held while the file is written. The state is changed only by the thread holding this lock, so that thread can read it
+     * without locking the store.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Read lock is held while the file is read, write lock while the state is changed or the file is replaced.
+     */
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    private State state = new State();
+
+    private int lines;
+
+    private long length;
+
+    MobeelizerLocalStore(final File directory, final String name, final Map<String, Set<String>> indexedFields,
+            final MobeelizerSpillStorage spillStorage) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        storeFile = new File(directory, name + ".store");
+        this.spillStorage = spillStorage;
+        for (Map.Entry<String, Set<String>> fields : indexedFields.entrySet()) {
+            this.indexedFields.put(fields.getKey(), new ArrayList<String>(fields.getValue()));
+        }
+        load();
+    }
+
+    MobeelizerJsonEntity get(final String model, final String guid) {
+        stateLock.readLock().lock();
+        try {
+            Map<String, Entry> modelEntries = state.entities.get(model);
+            Entry entry = modelEntries == null ? null : modelEntries.get(guid);
+            if (entry == null) {
+                return null;
+            }
+            return read(Collections.singletonList(entry)).get(0);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    List<MobeelizerJsonEntity> getAll(final String model) {
+        stateLock.readLock().lock();
+        try {
+            Map<String, Entry> modelEntries = state.entities.get(model);
+            if (modelEntries == null) {
+                return new ArrayList<MobeelizerJsonEntity>(0);
+            }
+            return read(modelEntries.values());
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds entities with given value of the indexed field.
+     */
+    List<MobeelizerJsonEntity> find(final String model, final String field, final String value) {
+        List<String> fields = indexedFields.get(model);
+        if (fields == null || !fields.contains(field)) {
+            throw new IllegalStateException("Field " + field + " of model " + model + " is not indexed.");
+        }
+        stateLock.readLock().lock();
+        try {
+            Map<String, Map<String, Set<String>>> modelIndexes = state.indexes.get(model);
+            Set<String> guids = modelIndexes == null ? null : modelIndexes.get(field).get(value);
+            if (guids == null) {
+                return new ArrayList<MobeelizerJsonEntity>(0);
+            }
+            Map<String, Entry> modelEntries = state.entities.get(model);
+            List<Entry> entries = new ArrayList<Entry>(guids.size());
+            for (String guid : guids) {
+                entries.add(modelEntries.get(guid));
+            }
+            return read(entries);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates changes of the synchronization.
+     *
+     * @param order
+     *            order of the synchronization, 0 if it is unknown
+     * @param replace
+     *            true if the entities are the result of the full synchronization and replace all stored entities
+     */
+    Changes newChanges(final long order, final boolean replace) {
+        return new Changes(order, replace);
+    }
+
+    /**
+     * Applies the entities from the temporary log. The file is written before the state is changed, so the failed write leaves
+     * the store unchanged.
+     */
+    private void commit(final File receivedFile, final long order, final boolean replace) throws IOException {
+        synchronized (writeLock) {
+            Set<String> receivedKeys = new HashSet<String>();
+            Map<String, Entry> accepted = new LinkedHashMap<String, Entry>();
+            LineReader reader = new LineReader(new FileInputStream(receivedFile));
+            try {
+                byte[] line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = parse(line, reader.getOffset());
+                    receivedKeys.add(entry.getKey());
+                    Entry current = state.entries.get(entry.getKey());
+                    if (current == null || !current.isNewerThan(order)) {
+                        accepted.remove(entry.getKey());
+                        accepted.put(entry.getKey(), entry);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (replace || lines + accepted.size() > Math.max(COMPACT_MIN_LINES, 2 * state.entries.size())) {
+                List<Entry> kept = new ArrayList<Entry>();
+                for (Entry entry : state.entries.values()) {
+                    // entities missing in the full synchronization are not known to the cloud anymore
+                    if (!accepted.containsKey(entry.getKey())
+                            && (!replace || receivedKeys.contains(entry.getKey()) || entry.isNewerThan(order))) {
+                        kept.add(entry);
+                    }
+                }
+                rewrite(kept, receivedFile, accepted.values());
+            } else if (!accepted.isEmpty()) {
+                append(receivedFile, accepted.values());
+            }
+        }
+    }
+
+    private void load() {
+        if (!storeFile.exists()) {
+            return;
+        }
+        try {
+            LineReader reader = new LineReader(new FileInputStream(storeFile));
+            try {
+                byte[] line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    try {
+                        state.put(parse(line, reader.getOffset()));
+                    } catch (IllegalStateException e) {
+                        logger.warn("Skipping invalid line " + lines + " of store " + storeFile.getAbsolutePath());
+                    }
+                }
+                length = reader.getPosition();
+            } finally {
+                reader.close();
+            }
+            if (length < storeFile.length()) {
+                // the last line is incomplete if the process stopped while appending to the file
+                truncate();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read store " + storeFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            state = new State();
+            lines = 0;
+            length = 0;
+        }
+    }
+
+    /**
+     * Appends the accepted entities to the store and applies them.
+     */
+    private void append(final File receivedFile, final Collection<Entry> accepted) throws IOException {
+        List<Entry> appended = new ArrayList<Entry>(accepted.size());
+        long position = length;
+        try {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(storeFile, true));
+            try {
+                position = copy(receivedFile, accepted, output, position, appended);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            truncate();
+            throw e;
+        }
+
+        stateLock.writeLock().lock();
+        try {
+            for (Entry entry : appended) {
+                state.put(entry);
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        lines += appended.size();
+        length = position;
+    }
+
+    /**
+     * Writes the kept and accepted entities to the new file and replaces the store with it.
+     */
+    private void rewrite(final List<Entry> kept, final File receivedFile, final Collection<Entry> accepted) throws IOException {
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        State updated = new State();
+        long position = 0;
+        List<Entry> written = new ArrayList<Entry>(kept.size() + accepted.size());
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            position = copy(storeFile, kept, output, position, written);
+            position = copy(receivedFile, accepted, output, position, written);
+        } finally {
+            output.close();
+        }
+        for (Entry entry : written) {
+            updated.put(entry);
+        }
+
+        stateLock.writeLock().lock();
+        try {
+            if (!tempFile.renameTo(storeFile) && !(storeFile.delete() && tempFile.renameTo(storeFile))) {
+                throw new IOException("Cannot replace store " + storeFile.getAbsolutePath());
+            }
+            state = updated;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        lines = written.size();
+        length = position;
+    }
+
+    /**
+     * Copies lines of the entries from the file to the output, collecting entries at their new positions.
+     *
+     * @return position after the copied lines
+     */
+    private static long copy(final File file, final Collection<Entry> entries, final OutputStream output, final long position,
+            final List<Entry> copied) throws IOException {
+        if (entries.isEmpty()) {
+            return position;
+        }
+        long offset = position;
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            for (Entry entry : entries) {
+                byte[] line = entry.readLine(input);
+                output.write(line);
+                output.write('\n');
+                copied.add(entry.movedTo(offset));
+                offset += line.length + 1;
+            }
+        } finally {
+            input.close();
+        }
+        return offset;
+    }
+
+    private void truncate() {
+        try {
+            RandomAccessFile file = new RandomAccessFile(storeFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot truncate store " + storeFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads entities of the entries from the store. Must be called with the read lock held.
+     */
+    private List<MobeelizerJsonEntity> read(final Collection<Entry> entries) {
+        List<MobeelizerJsonEntity> result = new ArrayList<MobeelizerJsonEntity>(entries.size());
+        try {
+            RandomAccessFile input = new RandomAccessFile(storeFile, "r");
+            try {
+                for (Entry entry : entries) {
+                    result.add(fromJson(new JSONObject(new String(entry.readLine(input), CHARSET))));
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read store " + storeFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        } catch (JSONException e) {
+            throw new IllegalStateException("Cannot read store " + storeFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the line into the entry, keeping only values of the indexed fields.
+     */
+    private Entry parse(final byte[] line, final long offset) {
+        try {
+            JSONObject json = new JSONObject(new String(line, CHARSET));
+            String model = json.getString("model");
+            String[] values = null;
+            if (json.has("fields")) {
+                List<String> fields = indexedFields.get(model);
+                values = new String[fields == null ? 0 : fields.size()];
+                JSONObject jsonFields = json.getJSONObject("fields");
+                for (int i = 0; i < values.length; i++) {
+                    String field = fields.get(i);
+                    values[i] = !jsonFields.has(field) || jsonFields.isNull(field) ? null : jsonFields.getString(field);
+                }
+            }
+            return new Entry(model, json.getString("guid"), json.optLong("order", 0), values, offset, line.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static String getKey(final String model, final String guid) {
+        return model + "/" + guid;
+    }
+
+    /**
+     * Converts the entity to the line of the file, or the removal of the entity when it has been deleted.
+     */
+    private static String toLine(final MobeelizerJsonEntity entity, final long order) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("model", entity.getModel());
+            json.put("guid", entity.getGuid());
+            json.put("order", order);
+            Map<String, String> fields = entity.getFields() != null ? entity.getFields() : Collections.<String, String> emptyMap();
+            if (!"true".equals(fields.get(DELETED_FIELD))) {
+                json.put("owner", entity.getOwner());
+                if (entity.getConflictState() != null) {
+                    json.put("conflictState", entity.getConflictState().name());
+                }
+                json.put("fields", new JSONObject(fields));
+            }
+            return json.toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    private static MobeelizerJsonEntity fromJson(final JSONObject json) throws JSONException {
+        MobeelizerJsonEntity entity = new MobeelizerJsonEntity();
+        entity.setModel(json.getString("model"));
+        entity.setGuid(json.getString("guid"));
+        entity.setOwner(json.optString("owner", null));
+        if (json.has("conflictState")) {
+            entity.setConflictState(ConflictState.valueOf(json.getString("conflictState")));
+        }
+        Map<String, String> fields = new HashMap<String, String>();
+        JSONObject jsonFields = json.getJSONObject("fields");
+        for (Iterator<?> keys = jsonFields.keys(); keys.hasNext();) {
+            String key = (String) keys.next();
+            fields.put(key, jsonFields.isNull(key) ? null : jsonFields.getString(key));
+        }
+        entity.setFields(fields);
+        return entity;
+    }
+
+    /**
+     * Position of the entity or removal set by the synchronization with given order, with values of the indexed fields.
+     */
+    private static class Entry {
+
+        private final String model;
+
+        private final String guid;
+
+        private final long order;
+
+        /**
+         * Values of the indexed fields, null for the removal.
+         */
+        private final String[] values;
+
+        private final long offset;
+
+        private final int length;
+
+        Entry(final String model, final String guid, final long order, final String[] values, final long offset,
+                final int length) {
+            this.model = model;
+            this.guid = guid;
+            this.order = order;
+            this.values = values;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String getKey() {
+            return MobeelizerLocalStore.getKey(model, guid);
+        }
+
+        boolean isRemoval() {
+            return values == null;
+        }
+
+        /**
+         * Checks if the entry has been set by the synchronization newer than the one with given order. The order 0 is unknown
+         * and never considered older.
+         */
+        boolean isNewerThan(final long order) {
+            return order > 0 && this.order > order;
+        }
+
+        byte[] readLine(final RandomAccessFile file) throws IOException {
+            byte[] line = new byte[length];
+            file.seek(offset);
+            file.readFully(line);
+            return line;
+        }
+
+        Entry movedTo(final long offset) {
+            return new Entry(model, guid, order, values, offset, length);
+        }
+
+    }
+
+    /**
+     * Stored entries with indexes, and removals needed to ignore entities of older synchronizations.
+     */
+    private class State {
+
+        private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+        private final Map<String, Map<String, Entry>> entities = new HashMap<String, Map<String, Entry>>();
+
+        private final Map<String, Map<String, Map<String, Set<String>>>> indexes =
+                new HashMap<String, Map<String, Map<String, Set<String>>>>();
+
+        void put(final Entry entry) {
+            String key = entry.getKey();
+            remove(entry.model, entry.guid);
+            entries.remove(key);
+
+            if (entry.isRemoval()) {
+                // removals of the unknown order are not needed to compare orders
+                if (entry.order > 0) {
+                    entries.put(key, entry);
+                }
+                return;
+            }
+
+            entries.put(key, entry);
+
+            Map<String, Entry> modelEntities = entities.get(entry.model);
+            if (modelEntities == null) {
+                modelEntities = new LinkedHashMap<String, Entry>();
+                entities.put(entry.model, modelEntities);
+            }
+            modelEntities.put(entry.guid, entry);
+
+            List<String> fields = indexedFields.get(entry.model);
+            if (fields == null) {
+                return;
+            }
+            Map<String, Map<String, Set<String>>> modelIndexes = getIndexes(entry.model);
+            for (int i = 0; i < fields.size(); i++) {
+                Map<String, Set<String>> index = modelIndexes.get(fields.get(i));
+                Set<String> guids = index.get(entry.values[i]);
+                if (guids == null) {
+                    guids = new HashSet<String>();
+                    index.put(entry.values[i], guids);
+                }
+                guids.add(entry.guid);
+            }
+        }
+
+        private void remove(final String model, final String guid) {
+            Map<String, Entry> modelEntities = entities.get(model);
+            Entry entry = modelEntities == null ? null : modelEntities.remove(guid);
+            if (entry == null) {
+                return;
+            }
+
+            List<String> fields = indexedFields.get(model);
+            if (fields == null) {
+                return;
+            }
+            Map<String, Map<String, Set<String>>> modelIndexes = getIndexes(model);
+            for (int i = 0; i < fields.size(); i++) {
+                Map<String, Set<String>> index = modelIndexes.get(fields.get(i));
+                Set<String> guids = index.get(entry.values[i]);
+                if (guids != null) {
+                    guids.remove(guid);
+                    if (guids.isEmpty()) {
+                        index.remove(entry.values[i]);
+                    }
+                }
+            }
+        }
+
+        private Map<String, Map<String, Set<String>>> getIndexes(final String model) {
+            Map<String, Map<String, Set<String>>> modelIndexes = indexes.get(model);
+            if (modelIndexes == null) {
+                modelIndexes = new HashMap<String, Map<String, Set<String>>>();
+                for (String field : indexedFields.get(model)) {
+                    modelIndexes.put(field, new HashMap<String, Set<String>>());
+                }
+                indexes.put(model, modelIndexes);
+            }
+            return modelIndexes;
+        }
+
+    }
+
+    /**
+     * Reader of the lines of the file with their positions.
+     */
+    private static class LineReader {
+
+        private final InputStream input;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private long position;
+
+        private long offset;
+
+        LineReader(final InputStream input) {
+            this.input = new BufferedInputStream(input);
+        }
+
+        /**
+         * Reads the next complete line, without the line separator.
+         *
+         * @return line or null at the end of the file, the incomplete last line is ignored
+         */
+        byte[] readLine() throws IOException {
+            line.reset();
+            long start = position;
+            int b;
+            while ((b = input.read()) != -1) {
+                if (b == '\n') {
+                    offset = start;
+                    position += line.size() + 1;
+                    return line.toByteArray();
+                }
+                line.write(b);
+            }
+            return null;
+        }
+
+        /**
+         * Gets the offset of the last read line.
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the position after the last read line.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        void close() throws IOException {
+            input.close();
+        }
+
+    }
+
+    /**
+     * Entities received in the single synchronization, streamed to the temporary log and saved before the synchronization is
+     * confirmed. Changes must be closed to delete the log when they are not committed.
+     */
+    class Changes {
+
+        private final long order;
+
+        private final boolean replace;
+
+        private File receivedFile;
+
+        private OutputStream output;
+
+        Changes(final long order, final boolean replace) {
+            this.order = order;
+            this.replace = replace;
+        }
+
+        void received(final MobeelizerJsonEntity entity) {
+            try {
+                if (output == null) {
+                    receivedFile = spillStorage.createTempFile("store");
+                    output = new BufferedOutputStream(new FileOutputStream(receivedFile));
+                }
+                output.write(toLine(entity, order).getBytes(CHARSET));
+                output.write('\n');
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write received entities: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Saves the entities and deletes the log.
+         */
+        void commit() {
+            try {
+                if (output != null) {
+                    output.close();
+                    output = null;
+                    MobeelizerLocalStore.this.commit(receivedFile, order, replace);
+                } else if (replace) {
+                    File emptyFile = spillStorage.createTempFile("store");
+                    receivedFile = emptyFile;
+                    MobeelizerLocalStore.this.commit(emptyFile, order, replace);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write store " + storeFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Deletes the log.
+         */
+        void close() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    logger.warn("Cannot close received entities: " + e.getMessage(), e);
+                }
+                output = null;
+            }
+            spillStorage.delete(receivedFile);
+            receivedFile = null;
+        }
+
+    }
+
+}
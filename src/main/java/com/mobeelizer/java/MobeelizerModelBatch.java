@@ -0,0 +1,146 @@
+package com.mobeelizer.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.mobeelizer.java.api.MobeelizerModel;
+import com.mobeelizer.java.sync.MobeelizerJsonEntity;
+import com.mobeelizer.java.sync.MobeelizerJsonEntity.ConflictState;
+
+/**
+ * Batch of the downloaded entities of the single model.
+ * 
+ * @since 1.8
+ * @see MobeelizerBatchSyncCallback
+ */
+public class MobeelizerModelBatch {
+
+    /**
+     * Name of the column with guids of the entities.
+     * 
+     * @since 1.8
+     */
+    public static final String GUID = "guid";
+
+    /**
+     * Name of the column with owners of the entities.
+     * 
+     * @since 1.8
+     */
+    public static final String OWNER = "owner";
+
+    /**
+     * Name of the column with "true" for conflicted entities and "false" for others.
+     * 
+     * @since 1.8
+     */
+    public static final String CONFLICTED = "conflicted";
+
+    private final MobeelizerSyncService syncService;
+
+    private final MobeelizerModel model;
+
+    private final String modelName;
+
+    private final List<MobeelizerJsonEntity> entities;
+
+    MobeelizerModelBatch(final MobeelizerSyncService syncService, final MobeelizerModel model, final String modelName,
+            final List<MobeelizerJsonEntity> entities) {
+        this.syncService = syncService;
+        this.model = model;
+        this.modelName = modelName;
+        this.entities = entities;
+    }
+
+    /**
+     * Gets the model of the entities.
+     * 
+     * @return model
+     * @since 1.8
+     */
+    public MobeelizerModel getModel() {
+        return model;
+    }
+
+    /**
+     * Gets the name of the model of the entities.
+     * 
+     * @return model name
+     * @since 1.8
+     */
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * Gets the number of entities in the batch.
+     * 
+     * @return number of entities
+     * @since 1.8
+     */
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Converts the entities in the batch.
+     * 
+     * @return entities
+     * @since 1.8
+     */
+    public List<Object> getEntities() {
+        List<Object> converted = new ArrayList<Object>(entities.size());
+        for (MobeelizerJsonEntity entity : entities) {
+            converted.add(syncService.getEntityFromJsonEntity(entity));
+        }
+        return converted;
+    }
+
+    /**
+     * Gets names of the columns: guid, owner, conflicted and names of the fields set in any entity of the batch.
+     * 
+     * @return column names
+     * @since 1.8
+     */
+    public List<String> getColumnNames() {
+        Set<String> fields = new TreeSet<String>();
+        for (MobeelizerJsonEntity entity : entities) {
+            fields.addAll(entity.getFields().keySet());
+        }
+        List<String> columns = new ArrayList<String>(fields.size() + 3);
+        columns.add(GUID);
+        columns.add(OWNER);
+        columns.add(CONFLICTED);
+        columns.addAll(fields);
+        return Collections.unmodifiableList(columns);
+    }
+
+    /**
+     * Gets values of the column as sent by the cloud, one for each entity in the batch.
+     * 
+     * @param name
+     *            column name
+     * @return values, null for entities without the field
+     * @since 1.8
+     */
+    public String[] getColumn(final String name) {
+        String[] values = new String[entities.size()];
+        for (int i = 0; i < values.length; i++) {
+            MobeelizerJsonEntity entity = entities.get(i);
+            if (GUID.equals(name)) {
+                values[i] = entity.getGuid();
+            } else if (OWNER.equals(name)) {
+                values[i] = entity.getOwner();
+            } else if (CONFLICTED.equals(name)) {
+                values[i] = Boolean.toString(entity.getConflictState() != ConflictState.NO_IN_CONFLICT);
+            } else {
+                values[i] = entity.getFields().get(name);
+            }
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.mobeelizer.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.mobeelizer.java.api.MobeelizerOperationError;
+import com.mobeelizer.java.connection.MobeelizerConnectionService;
+import com.mobeelizer.java.errors.MobeelizerOperationErrorImpl;
+
+/**
+ * Sends many remote notifications. Notifications with the same content and device are sent to batches of users with a single
+ * request. The batch is sent when it is full or when too many batches are waiting to be filled, the oldest one first, so
+ * notifications with different content are not kept in memory until the end. Batches are sent on the executor, at most the
+ * given number at the same time. When all of them are in progress the next batch is sent by the thread reading the
+ * notifications, which also slows down reading them.
+ */
+class MobeelizerNotificationSender implements Callable<Map<MobeelizerRemoteNotification, MobeelizerOperationError>> {
+
+    private static final int MAX_PENDING_BATCHES = 64;
+
+    private final MobeelizerConnectionService connectionService;
+
+    private final MobeelizerConnectionGuard connectionGuard;
+
+    private final Executor executor;
+
+    private final Iterable<MobeelizerRemoteNotification> notifications;
+
+    private final int batchSize;
+
+    private final Semaphore permits;
+
+    private final List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+
+    private final Map<MobeelizerRemoteNotification, MobeelizerOperationError> failures = Collections
+            .synchronizedMap(new LinkedHashMap<MobeelizerRemoteNotification, MobeelizerOperationError>());
+
+    MobeelizerNotificationSender(final MobeelizerConnectionService connectionService,
+            final MobeelizerConnectionGuard connectionGuard, final Executor executor,
+            final Iterable<MobeelizerRemoteNotification> notifications, final int batchSize, final int concurrency) {
+        this.connectionService = connectionService;
+        this.connectionGuard = connectionGuard;
+        this.executor = executor;
+        this.notifications = notifications;
+        this.batchSize = batchSize;
+        permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * Sends the notifications.
+     *
+     * @return errors of the notifications that have not been sent
+     */
+    @Override
+    public Map<MobeelizerRemoteNotification, MobeelizerOperationError> call() throws InterruptedException, ExecutionException {
+        Map<Batch, List<MobeelizerRemoteNotification>> batches = new LinkedHashMap<Batch, List<MobeelizerRemoteNotification>>();
+
+        for (MobeelizerRemoteNotification notification : notifications) {
+            Batch batch = new Batch(notification.getDevice(), notification.getNotification());
+            List<MobeelizerRemoteNotification> batchNotifications = batches.get(batch);
+            if (batchNotifications == null) {
+                // the notification is copied, so the caller can reuse the map for the next notification
+                batch = new Batch(notification.getDevice(), notification.getNotification() == null ? null
+                        : new HashMap<String, String>(notification.getNotification()));
+                batchNotifications = new ArrayList<MobeelizerRemoteNotification>();
+                batches.put(batch, batchNotifications);
+            }
+            batchNotifications.add(notification);
+            if (batchNotifications.size() >= batchSize) {
+                batches.remove(batch);
+                dispatch(batch, batchNotifications);
+            } else if (batches.size() > MAX_PENDING_BATCHES) {
+                Iterator<Map.Entry<Batch, List<MobeelizerRemoteNotification>>> oldest = batches.entrySet().iterator();
+                Map.Entry<Batch, List<MobeelizerRemoteNotification>> entry = oldest.next();
+                oldest.remove();
+                dispatch(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<Batch, List<MobeelizerRemoteNotification>> batch : batches.entrySet()) {
+            dispatch(batch.getKey(), batch.getValue());
+        }
+
+        for (FutureTask<Void> task : tasks) {
+            // runs the task in this thread if the executor has not started it yet
+            task.run();
+            task.get();
+        }
+
+        return failures;
+    }
+
+    private void dispatch(final Batch batch, final List<MobeelizerRemoteNotification> batchNotifications) {
+        for (Iterator<FutureTask<Void>> i = tasks.iterator(); i.hasNext();) {
+            if (i.next().isDone()) {
+                i.remove();
+            }
+        }
+
+        if (!permits.tryAcquire()) {
+            send(batch, batchNotifications);
+            return;
+        }
+
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    send(batch, batchNotifications);
+                } finally {
+                    permits.release();
+                }
+            }
+
+        }, null);
+
+        tasks.add(task);
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private void send(final Batch batch, final List<MobeelizerRemoteNotification> batchNotifications) {
+        final List<String> users = new ArrayList<String>(batchNotifications.size());
+        for (MobeelizerRemoteNotification notification : batchNotifications) {
+            users.add(notification.getUser());
+        }
+
+        MobeelizerOperationError error;
+
+        try {
+            error = connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+                @Override
+                MobeelizerOperationError execute() {
+                    return connectionService.sendRemoteNotification(batch.device, null, users, batch.notification);
+                }
+
+            });
+        } catch (RuntimeException e) {
+            error = MobeelizerOperationErrorImpl.exception(e);
+        }
+
+        if (error != null) {
+            for (MobeelizerRemoteNotification notification : batchNotifications) {
+                failures.put(notification, error);
+            }
+        }
+    }
+
+    private static class Batch {
+
+        private final String device;
+
+        private final Map<String, String> notification;
+
+        Batch(final String device, final Map<String, String> notification) {
+            this.device = device;
+            this.notification = notification;
+        }
+
+        @Override
+        public int hashCode() {
+            return (device == null ? 0 : device.hashCode()) * 31 + (notification == null ? 0 : notification.hashCode());
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Batch)) {
+                return false;
+            }
+            Batch other = (Batch) obj;
+            return (device == null ? other.device == null : device.equals(other.device))
+                    && (notification == null ? other.notification == null : notification.equals(other.notification));
+        }
+
+    }
+
+}
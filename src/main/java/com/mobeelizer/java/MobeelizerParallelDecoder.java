@@ -0,0 +1,117 @@
+package com.mobeelizer.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.mobeelizer.java.sync.MobeelizerJsonEntity;
+
+/**
+ * Iterator converting downloaded entities in chunks on the decode executor. Entities are read from the input data by the
+ * iterating thread and returned in the order they were downloaded, while the following chunks are converted in the background.
+ * The chunk that the executor has not started yet is converted by the iterating thread, so iterating on a thread of the busy
+ * executor cannot deadlock.
+ */
+class MobeelizerParallelDecoder implements Iterator<Object> {
+
+    private final MobeelizerSyncService syncService;
+
+    private final Iterator<MobeelizerJsonEntity> source;
+
+    private final ExecutorService executor;
+
+    private final int chunkSize;
+
+    private final int maxPendingChunks;
+
+    private final LinkedList<FutureTask<List<Object>>> pendingChunks = new LinkedList<FutureTask<List<Object>>>();
+
+    private Iterator<Object> chunk = Collections.emptyList().iterator();
+
+    MobeelizerParallelDecoder(final MobeelizerSyncService syncService, final Iterator<MobeelizerJsonEntity> source,
+            final ExecutorService executor, final int chunkSize, final int maxPendingChunks) {
+        this.syncService = syncService;
+        this.source = source;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.maxPendingChunks = maxPendingChunks;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!chunk.hasNext()) {
+            submitChunks();
+            if (pendingChunks.isEmpty()) {
+                return false;
+            }
+            chunk = get(pendingChunks.removeFirst()).iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void submitChunks() {
+        while (pendingChunks.size() < maxPendingChunks && source.hasNext()) {
+            final List<MobeelizerJsonEntity> entities = new ArrayList<MobeelizerJsonEntity>(chunkSize);
+            while (entities.size() < chunkSize && source.hasNext()) {
+                entities.add(source.next());
+            }
+
+            FutureTask<List<Object>> task = new FutureTask<List<Object>>(new Callable<List<Object>>() {
+
+                @Override
+                public List<Object> call() {
+                    List<Object> converted = new ArrayList<Object>(entities.size());
+                    for (MobeelizerJsonEntity entity : entities) {
+                        converted.add(syncService.getEntityFromJsonEntity(entity));
+                    }
+                    return converted;
+                }
+
+            });
+            pendingChunks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the chunk will be converted by the iterating thread
+            }
+        }
+    }
+
+    private List<Object> get(final FutureTask<List<Object>> task) {
+        // converts the chunk in this thread if the executor has not started it yet
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while converting entities", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.mobeelizer.java;
+
+import java.util.Map;
+
+/**
+ * Remote notification for the single user.
+ * 
+ * @since 1.8
+ * @see Mobeelizer#sendRemoteNotifications(Iterable)
+ */
+public class MobeelizerRemoteNotification {
+
+    private final String user;
+
+    private final String device;
+
+    private final Map<String, String> notification;
+
+    /**
+     * Creates remote notification for all devices of the user.
+     * 
+     * @param user
+     *            login of the user
+     * @param notification
+     *            notification to send
+     * @since 1.8
+     */
+    public MobeelizerRemoteNotification(final String user, final Map<String, String> notification) {
+        this(user, null, notification);
+    }
+
+    /**
+     * Creates remote notification for the device of the user.
+     * 
+     * @param user
+     *            login of the user
+     * @param device
+     *            device, null for all devices
+     * @param notification
+     *            notification to send
+     * @since 1.8
+     */
+    public MobeelizerRemoteNotification(final String user, final String device, final Map<String, String> notification) {
+        this.user = user;
+        this.device = device;
+        this.notification = notification;
+    }
+
+    /**
+     * Gets login of the user.
+     * 
+     * @return login
+     * @since 1.8
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * Gets device.
+     * 
+     * @return device or null for all devices
+     * @since 1.8
+     */
+    public String getDevice() {
+        return device;
+    }
+
+    /**
+     * Gets notification to send.
+     * 
+     * @return notification
+     * @since 1.8
+     */
+    public Map<String, String> getNotification() {
+        return notification;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.mobeelizer.java;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage of the temporary data of the synchronization. Temporary files are created in the dedicated subdirectory of the spill
+ * directory, or in the default temporary directory when it is not set. Files that cannot be deleted are deleted again later.
+ * Files left in the subdirectory by previous runs are deleted when the storage is used for the first time in the process, other
+ * files in the spill directory, like the state of the synchronization, are never touched.
+ */
+class MobeelizerSpillStorage {
+
+    static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerSpillStorage.class);
+
+    private static final String PREFIX = "mobeelizer";
+
+    private static final String SUBDIRECTORY = "mobeelizer-spill";
+
+    private static final long ORPHAN_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final Set<File> RECLAIMED_DIRECTORIES = Collections.synchronizedSet(new HashSet<File>());
+
+    private final File directory;
+
+    private final int memoryThreshold;
+
+    private final Set<File> undeletedFiles = new HashSet<File>();
+
+    MobeelizerSpillStorage(final File directory, final int memoryThreshold) {
+        this.directory = directory != null ? new File(directory, SUBDIRECTORY) : null;
+        this.memoryThreshold = memoryThreshold;
+        if (this.directory != null && RECLAIMED_DIRECTORIES.add(this.directory.getAbsoluteFile())) {
+            reclaimOrphans();
+        }
+    }
+
+    File createTempFile(final String suffix) throws IOException {
+        retryDelete();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        return File.createTempFile(PREFIX, suffix, directory);
+    }
+
+    void delete(final File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            logger.warn("Cannot delete file " + file.getAbsolutePath() + ", it will be deleted later");
+            synchronized (undeletedFiles) {
+                undeletedFiles.add(file);
+            }
+        }
+    }
+
+    /**
+     * Creates buffer keeping the data in memory until it exceeds the memory threshold and in the temporary file after that.
+     */
+    Buffer createBuffer() {
+        return new Buffer();
+    }
+
+    private void retryDelete() {
+        List<File> files;
+        synchronized (undeletedFiles) {
+            if (undeletedFiles.isEmpty()) {
+                return;
+            }
+            files = new ArrayList<File>(undeletedFiles);
+            undeletedFiles.clear();
+        }
+        for (File file : files) {
+            delete(file);
+        }
+    }
+
+    private void reclaimOrphans() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - ORPHAN_AGE;
+        int reclaimed = 0;
+        for (File file : files) {
+            if (file.isFile() && file.getName().startsWith(PREFIX) && file.lastModified() < limit) {
+                if (file.delete()) {
+                    reclaimed++;
+                } else {
+                    logger.warn("Cannot delete file " + file.getAbsolutePath());
+                }
+            }
+        }
+        if (reclaimed > 0) {
+            logger.info("Deleted " + reclaimed + " files left in " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Output stream keeping the data in memory or in the temporary file.
+     */
+    class Buffer extends OutputStream {
+
+        private MemoryOutputStream memory = new MemoryOutputStream();
+
+        private File file;
+
+        private OutputStream output = memory;
+
+        private boolean closed;
+
+        @Override
+        public void write(final int b) throws IOException {
+            spillIfNecessary(1);
+            output.write(b);
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            spillIfNecessary(length);
+            output.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            output.close();
+        }
+
+        /**
+         * Opens the data written to the closed buffer.
+         */
+        InputStream getInputStream() throws IOException {
+            return memory != null ? memory.getInputStream() : new FileInputStream(file);
+        }
+
+        /**
+         * Deletes the data, closing the buffer first if it has not been closed.
+         */
+        void delete() {
+            if (!closed) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    logger.debug("Cannot close buffer: " + e.getMessage(), e);
+                }
+            }
+            if (file != null) {
+                MobeelizerSpillStorage.this.delete(file);
+            }
+            memory = null;
+        }
+
+        private void spillIfNecessary(final int length) throws IOException {
+            if (memory == null || memory.size() + length <= memoryThreshold) {
+                return;
+            }
+            file = createTempFile("spill");
+            output = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(output);
+            memory = null;
+        }
+
+    }
+
+    private static class MemoryOutputStream extends ByteArrayOutputStream {
+
+        InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.mobeelizer.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock of the state files of the user in the state directory, so two instances do not overwrite each other's journal, snapshot,
+ * file index and local store. The lock file is locked for other processes, instances in this process are refused as long as the
+ * owner of the lock is reachable. The lock is released when the owner has been garbage collected or the process stops.
+ */
+class MobeelizerStateLock {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerStateLock.class);
+
+    private static final Map<File, MobeelizerStateLock> LOCKS = new HashMap<File, MobeelizerStateLock>();
+
+    private final WeakReference<Object> owner;
+
+    private final RandomAccessFile file;
+
+    private final FileLock lock;
+
+    private MobeelizerStateLock(final File lockFile, final Object owner) throws IOException {
+        this.owner = new WeakReference<Object>(owner);
+        file = new RandomAccessFile(lockFile, "rw");
+        FileLock lock = null;
+        try {
+            lock = file.getChannel().tryLock();
+        } finally {
+            if (lock == null) {
+                file.close();
+            }
+        }
+        this.lock = lock;
+    }
+
+    /**
+     * Locks the state files with given name for the owner. Locking them again by the same owner does nothing.
+     *
+     * @throws IllegalStateException
+     *             if the state files are locked by another instance or another process
+     */
+    static void acquire(final File directory, final String name, final Object owner) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        File lockFile = new File(directory, name + ".lock").getAbsoluteFile();
+        synchronized (LOCKS) {
+            for (Iterator<MobeelizerStateLock> i = LOCKS.values().iterator(); i.hasNext();) {
+                MobeelizerStateLock lock = i.next();
+                if (lock.owner.get() == null) {
+                    lock.release();
+                    i.remove();
+                }
+            }
+
+            MobeelizerStateLock current = LOCKS.get(lockFile);
+            if (current != null) {
+                if (current.owner.get() == owner) {
+                    return;
+                }
+                throw new IllegalStateException("State of " + name + " in " + directory.getAbsolutePath()
+                        + " is used by another Mobeelizer instance.");
+            }
+
+            MobeelizerStateLock lock;
+            try {
+                lock = new MobeelizerStateLock(lockFile, owner);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot lock " + lockFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            }
+            if (lock.lock == null) {
+                throw new IllegalStateException("State of " + name + " in " + directory.getAbsolutePath()
+                        + " is used by another process.");
+            }
+            LOCKS.put(lockFile, lock);
+        }
+    }
+
+    private void release() {
+        try {
+            lock.release();
+            file.close();
+        } catch (IOException e) {
+            logger.warn("Cannot release lock: " + e.getMessage(), e);
+        }
+    }
+
+}
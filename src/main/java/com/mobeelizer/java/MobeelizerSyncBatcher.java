@@ -0,0 +1,282 @@
+package com.mobeelizer.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mobeelizer.java.api.MobeelizerErrors;
+import com.mobeelizer.java.api.MobeelizerFile;
+import com.mobeelizer.java.api.MobeelizerOperationError;
+import com.mobeelizer.java.errors.MobeelizerOperationErrorImpl;
+
+/**
+ * Coalesces differential synchronizations queued within the batch window into a single synchronization and fans out its
+ * result to the callbacks of all queued synchronizations. Synchronizations rejected by the executor fail with the exception.
+ */
+class MobeelizerSyncBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerSyncBatcher.class);
+
+    private final MobeelizerSyncService syncService;
+
+    private final Executor syncExecutor;
+
+    private final long window;
+
+    private final int maxSize;
+
+    private Batch batch;
+
+    MobeelizerSyncBatcher(final MobeelizerSyncService syncService, final Executor syncExecutor, final long window,
+            final int maxSize) {
+        this.syncService = syncService;
+        this.syncExecutor = syncExecutor;
+        this.window = window;
+        this.maxSize = maxSize;
+    }
+
+    Future<Void> sync(final Iterable<Object> entities, final Iterable<MobeelizerFile> files, final MobeelizerSyncCallback callback) {
+        final Batch current;
+
+        synchronized (this) {
+            if (batch == null) {
+                current = new Batch(new FutureTask<Void>(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // completed after the callbacks have been invoked
+                    }
+
+                }, null));
+                batch = current;
+                MobeelizerExecutors.getScheduler().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flush(current);
+                    }
+
+                }, window, TimeUnit.MILLISECONDS);
+            } else {
+                current = batch;
+            }
+
+            current.add(entities, files, callback);
+        }
+
+        if (current.size() >= maxSize) {
+            flush(current);
+        }
+
+        return current.completion;
+    }
+
+    private void flush(final Batch flushed) {
+        synchronized (this) {
+            if (batch != flushed) {
+                return;
+            }
+            batch = null;
+        }
+        submit(flushed);
+    }
+
+    /**
+     * Runs the batch on the executor, or fails all its synchronizations if the executor rejects it.
+     */
+    private void submit(final Batch submitted) {
+        try {
+            syncExecutor.execute(submitted.task);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Batched synchronization rejected by the executor: " + e.getMessage(), e);
+            submitted.rejection = e;
+            submitted.task.run();
+        }
+    }
+
+    private class Batch implements Runnable, MobeelizerSyncCallback {
+
+        private final List<Part> parts = new ArrayList<Part>();
+
+        private final FutureTask<Void> task = new FutureTask<Void>(this, null);
+
+        /**
+         * Completed after the callbacks of all queued synchronizations have been invoked, shared with the batch synchronizing
+         * the valid synchronizations again.
+         */
+        private final FutureTask<Void> completion;
+
+        private int size;
+
+        private boolean resubmitted;
+
+        private RejectedExecutionException rejection;
+
+        private int unconfirmed;
+
+        private MobeelizerConfirmSyncCallback confirmCallback;
+
+        Batch(final FutureTask<Void> completion) {
+            this.completion = completion;
+        }
+
+        synchronized void add(final Iterable<Object> entities, final Iterable<MobeelizerFile> files, final MobeelizerSyncCallback callback) {
+            Part part = new Part(callback);
+            if (entities != null) {
+                for (Object entity : entities) {
+                    part.entities.add(entity);
+                }
+            }
+            if (files != null) {
+                for (MobeelizerFile file : files) {
+                    part.files.add(file);
+                }
+            }
+            parts.add(part);
+            size += part.entities.size() + part.files.size();
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (rejection != null) {
+                    onSyncFinishedWithError(MobeelizerOperationErrorImpl.exception(rejection));
+                    return;
+                }
+                List<Object> entities = new ArrayList<Object>();
+                List<MobeelizerFile> files = new ArrayList<MobeelizerFile>();
+                for (Part part : parts) {
+                    entities.addAll(part.entities);
+                    files.addAll(part.files);
+                }
+                syncService.syncMerged(entities, files, this);
+            } finally {
+                if (!resubmitted) {
+                    completion.run();
+                }
+            }
+        }
+
+        @Override
+        public void onSyncFinishedWithSuccess(final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
+                final Iterable<String> deletedFiles, final MobeelizerConfirmSyncCallback confirmCallback) {
+            synchronized (this) {
+                this.confirmCallback = confirmCallback;
+                unconfirmed = parts.size();
+            }
+
+            for (Part part : parts) {
+                Confirmation confirmation = new Confirmation();
+                try {
+                    part.callback.onSyncFinishedWithSuccess(entities, files, deletedFiles, confirmation);
+                } catch (RuntimeException e) {
+                    logger.warn("Callback of the batched synchronization failed: " + e.getMessage(), e);
+                    // the failed callback will not confirm, so it must not hold the synchronization unconfirmed
+                    confirmation.confirm();
+                }
+            }
+        }
+
+        @Override
+        public void onSyncFinishedWithError(final MobeelizerOperationError error) {
+            for (Part part : parts) {
+                try {
+                    part.callback.onSyncFinishedWithError(error);
+                } catch (RuntimeException e) {
+                    logger.warn("Callback of the batched synchronization failed: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * Fails only the queued synchronizations with invalid entities and synchronizes the rest again in the new batch, after
+         * this synchronization has finished. All queued synchronizations fail if none of them is invalid on its own.
+         */
+        @Override
+        public void onSyncFinishedWithError(final MobeelizerErrors databaseError) {
+            if (parts.size() > 1) {
+                List<Part> valid = new ArrayList<Part>();
+                for (Part part : parts) {
+                    MobeelizerErrors errors = syncService.validateEntities(part.entities);
+                    if (errors == null) {
+                        valid.add(part);
+                    } else {
+                        notifyError(part, errors);
+                    }
+                }
+                if (valid.size() < parts.size()) {
+                    if (!valid.isEmpty()) {
+                        Batch retry = new Batch(completion);
+                        retry.parts.addAll(valid);
+                        resubmitted = true;
+                        submit(retry);
+                    }
+                    return;
+                }
+            }
+
+            for (Part part : parts) {
+                notifyError(part, databaseError);
+            }
+        }
+
+        private void notifyError(final Part part, final MobeelizerErrors errors) {
+            try {
+                part.callback.onSyncFinishedWithError(errors);
+            } catch (RuntimeException e) {
+                logger.warn("Callback of the batched synchronization failed: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Confirmation of a single queued synchronization. The merged synchronization is confirmed once all of them have
+         * confirmed, repeated confirmations are ignored.
+         */
+        private class Confirmation implements MobeelizerConfirmSyncCallback {
+
+            private boolean confirmed;
+
+            @Override
+            public void confirm() {
+                synchronized (Batch.this) {
+                    if (confirmed) {
+                        return;
+                    }
+                    confirmed = true;
+                    if (--unconfirmed > 0) {
+                        return;
+                    }
+                }
+                confirmCallback.confirm();
+            }
+
+        }
+
+    }
+
+    private static class Part {
+
+        private final List<Object> entities = new ArrayList<Object>();
+
+        private final List<MobeelizerFile> files = new ArrayList<MobeelizerFile>();
+
+        private final MobeelizerSyncCallback callback;
+
+        Part(final MobeelizerSyncCallback callback) {
+            this.callback = callback;
+        }
+
+    }
+
+}
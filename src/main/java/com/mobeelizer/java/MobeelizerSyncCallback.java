@@ -34,6 +34,12 @@ public interface MobeelizerSyncCallback {
     /**
      * Method invoked when the synchronization is finished with success. Use confirmCallback to confirm synchronization.
      * 
+     * Entities and files are read from the downloaded data one by one while iterating, so they must be consumed before the
+     * synchronization is confirmed. File content is opened only when {@link MobeelizerFile#getInputStream()} or
+     * {@link MobeelizerFile#getFile()} is called; the file returned by the latter is deleted on confirmation. The downloaded
+     * data stays open until the synchronization is confirmed, so the confirmation must not be skipped. If this method throws, the
+     * data is released at once.
+     * 
      * @param entities
      *            new entities
      * @param files
@@ -0,0 +1,73 @@
+package com.mobeelizer.java;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.mobeelizer.java.api.MobeelizerModel;
+
+/**
+ * Filter of the entities returned by the full synchronization. Entities that do not match the filter are skipped before they
+ * are converted.
+ * 
+ * @since 1.8
+ * @see Mobeelizer#syncAll(MobeelizerSyncFilter, MobeelizerSyncCallback)
+ */
+public class MobeelizerSyncFilter {
+
+    private final Set<String> models = new HashSet<String>();
+
+    private final Set<String> owners = new HashSet<String>();
+
+    /**
+     * Adds model to the returned models. By default entities of all models are returned.
+     * 
+     * @param model
+     *            model
+     * @throws IllegalArgumentException
+     *             if the model is null
+     * @since 1.8
+     */
+    public void addModel(final MobeelizerModel model) {
+        if (model == null) {
+            throw new IllegalArgumentException("Model must not be null.");
+        }
+        models.add(model.getName());
+    }
+
+    /**
+     * Adds model with given name to the returned models. By default entities of all models are returned.
+     * 
+     * @param model
+     *            model name
+     * @since 1.8
+     */
+    public void addModel(final String model) {
+        models.add(model);
+    }
+
+    /**
+     * Adds owner to the owners of the returned entities. By default entities of all owners are returned.
+     * 
+     * @param owner
+     *            login of the owner
+     * @since 1.8
+     */
+    public void addOwner(final String owner) {
+        owners.add(owner);
+    }
+
+    /**
+     * Copies the filter, so the synchronization running in the background is not changed by the caller.
+     */
+    MobeelizerSyncFilter copy() {
+        MobeelizerSyncFilter copy = new MobeelizerSyncFilter();
+        copy.models.addAll(models);
+        copy.owners.addAll(owners);
+        return copy;
+    }
+
+    boolean accepts(final String model, final String owner) {
+        return (models.isEmpty() || models.contains(model)) && (owners.isEmpty() || owners.contains(owner));
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.mobeelizer.java;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.mobeelizer.java.MobeelizerSyncReport.ErrorCategory;
+import com.mobeelizer.java.MobeelizerSyncReport.Phase;
+
+/**
+ * Listener keeping durations of the latest synchronizations in memory to calculate their percentiles.
+ * 
+ * @since 1.8
+ */
+public class MobeelizerSyncHistogram implements MobeelizerSyncListener {
+
+    private final Map<Phase, Samples> phases = new EnumMap<Phase, Samples>(Phase.class);
+
+    private final Map<ErrorCategory, Long> errors = new EnumMap<ErrorCategory, Long>(ErrorCategory.class);
+
+    private final Samples total;
+
+    private final int size;
+
+    private long count;
+
+    /**
+     * Creates histogram keeping durations of the latest 1024 synchronizations.
+     * 
+     * @since 1.8
+     */
+    public MobeelizerSyncHistogram() {
+        this(1024);
+    }
+
+    /**
+     * Creates histogram keeping durations of the given number of the latest synchronizations.
+     * 
+     * @param size
+     *            number of synchronizations
+     * @throws IllegalArgumentException
+     *             if the size is not positive
+     * @since 1.8
+     */
+    public MobeelizerSyncHistogram(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive.");
+        }
+        this.size = size;
+        total = new Samples(size);
+    }
+
+    @Override
+    public synchronized void onSyncFinished(final MobeelizerSyncReport report) {
+        count++;
+        total.add(report.getDuration());
+        for (Map.Entry<Phase, Long> duration : report.getDurations().entrySet()) {
+            Samples samples = phases.get(duration.getKey());
+            if (samples == null) {
+                samples = new Samples(size);
+                phases.put(duration.getKey(), samples);
+            }
+            samples.add(duration.getValue());
+        }
+        if (report.getErrorCategory() != null) {
+            Long errorCount = errors.get(report.getErrorCategory());
+            errors.put(report.getErrorCategory(), errorCount == null ? 1 : errorCount + 1);
+        }
+    }
+
+    /**
+     * Gets the percentile of the synchronization duration in nanoseconds, for example 50 for median or 99.
+     * 
+     * @param percentile
+     *            percentile
+     * @return duration or 0 if there was no synchronization
+     * @since 1.8
+     */
+    public synchronized long getPercentile(final double percentile) {
+        return total.getPercentile(percentile);
+    }
+
+    /**
+     * Gets the percentile of the phase duration in nanoseconds, for example 50 for median or 99.
+     * 
+     * @param phase
+     *            phase
+     * @param percentile
+     *            percentile
+     * @return duration or 0 if the phase has not been executed
+     * @since 1.8
+     */
+    public synchronized long getPercentile(final Phase phase, final double percentile) {
+        Samples samples = phases.get(phase);
+        return samples == null ? 0 : samples.getPercentile(percentile);
+    }
+
+    /**
+     * Gets the number of synchronizations.
+     * 
+     * @return number of synchronizations
+     * @since 1.8
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the number of synchronizations failed with the error of given category.
+     * 
+     * @param category
+     *            category
+     * @return number of errors
+     * @since 1.8
+     */
+    public synchronized long getErrorCount(final ErrorCategory category) {
+        Long errorCount = errors.get(category);
+        return errorCount == null ? 0 : errorCount;
+    }
+
+    private static class Samples {
+
+        private final long[] values;
+
+        private int next;
+
+        private int length;
+
+        Samples(final int size) {
+            values = new long[size];
+        }
+
+        void add(final long value) {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            if (length < values.length) {
+                length++;
+            }
+        }
+
+        long getPercentile(final double percentile) {
+            if (length == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, length);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * length) - 1;
+            return sorted[Math.max(0, Math.min(index, length - 1))];
+        }
+
+    }
+
+}
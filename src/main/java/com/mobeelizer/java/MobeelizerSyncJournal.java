@@ -0,0 +1,256 @@
+package com.mobeelizer.java;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal of the unconfirmed synchronizations. It keeps the tickets and the downloaded data in the state directory until the
+ * synchronizations are confirmed, so a restarted application can resume them instead of starting new ones. Every ticket has
+ * its own entry, so synchronizations running at the same time do not overwrite each other.
+ *
+ * Tickets are claimed by the synchronization that processes them and cannot be resumed until they are released. The
+ * connection service reports connection errors and tickets rejected by the cloud the same way, so the ticket is dropped only
+ * after waiting for it has failed several times.
+ */
+class MobeelizerSyncJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerSyncJournal.class);
+
+    private static final int MAX_WAIT_FAILURES = 3;
+
+    private static final String TICKETS = "tickets";
+
+    private static final String SEQUENCE = "sequence";
+
+    private static final String DATA = "data.";
+
+    private static final String FAILURES = "failures.";
+
+    private static final String LAST_ORDER = "lastOrder";
+
+    private static final String ORDER = "order.";
+
+    private final File directory;
+
+    private final String name;
+
+    private final File journalFile;
+
+    private final Properties properties = new Properties();
+
+    private final List<String> tickets = new ArrayList<String>();
+
+    private final Set<String> claimed = new HashSet<String>();
+
+    MobeelizerSyncJournal(final File directory, final String name) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.name = name;
+        journalFile = new File(directory, name + ".journal");
+        load();
+    }
+
+    /**
+     * Claims the oldest unconfirmed synchronization that is not processed by another synchronization.
+     *
+     * @return ticket or null if there is no synchronization to resume
+     */
+    synchronized String claimTicket() {
+        for (String ticket : tickets) {
+            if (claimed.add(ticket)) {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if there is the unconfirmed synchronization that is not processed by another synchronization.
+     */
+    synchronized boolean hasTicket() {
+        return !claimed.containsAll(tickets);
+    }
+
+    /**
+     * Gets the data downloaded for the unconfirmed synchronization.
+     *
+     * @return data or null if the data has not been downloaded yet
+     */
+    synchronized File getData(final String ticket) {
+        File dataFile = getDataFile(ticket);
+        return dataFile != null && dataFile.exists() ? dataFile : null;
+    }
+
+    /**
+     * Gets the order of the synchronization. Synchronizations are ordered as their tickets were created, also across restarts.
+     *
+     * @return order or 0 if the ticket is not in the journal
+     */
+    synchronized long getOrder(final String ticket) {
+        return Long.parseLong(properties.getProperty(ORDER + ticket, "0"));
+    }
+
+    /**
+     * Adds the ticket of the new synchronization, claimed by the synchronization that created it.
+     */
+    synchronized void ticketCreated(final String ticket) {
+        if (!tickets.contains(ticket)) {
+            tickets.add(ticket);
+            long order = Long.parseLong(properties.getProperty(LAST_ORDER, "0")) + 1;
+            properties.setProperty(LAST_ORDER, Long.toString(order));
+            properties.setProperty(ORDER + ticket, Long.toString(order));
+        }
+        claimed.add(ticket);
+        store();
+    }
+
+    /**
+     * Moves the downloaded data into the journal.
+     *
+     * @return the file with the data kept by the journal
+     */
+    synchronized File dataDownloaded(final String ticket, final File inputFile) throws IOException {
+        int sequence = Integer.parseInt(properties.getProperty(SEQUENCE, "0")) + 1;
+        File dataFile = new File(directory, name + "-" + sequence + ".data");
+        File tempFile = new File(dataFile.getPath() + ".tmp");
+        if (!inputFile.renameTo(tempFile)) {
+            copy(inputFile, tempFile);
+            if (!inputFile.delete()) {
+                logger.warn("Cannot delete file " + inputFile.getAbsolutePath());
+            }
+        }
+        deleteData(ticket);
+        if (!tempFile.renameTo(dataFile)) {
+            throw new IOException("Cannot move " + tempFile.getAbsolutePath() + " to " + dataFile.getAbsolutePath());
+        }
+        properties.setProperty(SEQUENCE, Integer.toString(sequence));
+        properties.setProperty(DATA + ticket, dataFile.getName());
+        store();
+        return dataFile;
+    }
+
+    /**
+     * Releases the ticket that has not been confirmed, so it can be resumed.
+     */
+    synchronized void released(final String ticket) {
+        claimed.remove(ticket);
+    }
+
+    /**
+     * Records the failure of waiting for the ticket and releases it. The ticket is dropped if waiting for it has failed too many
+     * times.
+     */
+    synchronized void waitFailed(final String ticket) {
+        int failures = Integer.parseInt(properties.getProperty(FAILURES + ticket, "0")) + 1;
+        if (failures >= MAX_WAIT_FAILURES) {
+            logger.warn("Dropping synchronization " + ticket + " after " + failures + " failures");
+            confirmed(ticket);
+            return;
+        }
+        properties.setProperty(FAILURES + ticket, Integer.toString(failures));
+        claimed.remove(ticket);
+        store();
+    }
+
+    synchronized void confirmed(final String ticket) {
+        deleteData(ticket);
+        tickets.remove(ticket);
+        claimed.remove(ticket);
+        properties.remove(DATA + ticket);
+        properties.remove(FAILURES + ticket);
+        properties.remove(ORDER + ticket);
+        // the journal is kept even without tickets, so the order continues after restart
+        store();
+    }
+
+    private File getDataFile(final String ticket) {
+        String dataName = properties.getProperty(DATA + ticket);
+        return dataName != null ? new File(directory, dataName) : null;
+    }
+
+    private void deleteData(final String ticket) {
+        File dataFile = getDataFile(ticket);
+        if (dataFile != null && dataFile.exists() && !dataFile.delete()) {
+            logger.warn("Cannot delete file " + dataFile.getAbsolutePath());
+        }
+    }
+
+    private void load() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        try {
+            InputStream input = new FileInputStream(journalFile);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read journal " + journalFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            properties.clear();
+        }
+        String value = properties.getProperty(TICKETS, "").trim();
+        if (value.length() > 0) {
+            for (String ticket : value.split("\\s+")) {
+                tickets.add(ticket);
+            }
+        }
+    }
+
+    private void store() {
+        StringBuilder value = new StringBuilder();
+        for (String ticket : tickets) {
+            value.append(ticket).append(' ');
+        }
+        properties.setProperty(TICKETS, value.toString().trim());
+
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try {
+            OutputStream output = new FileOutputStream(tempFile);
+            try {
+                properties.store(output, null);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write journal " + journalFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+        if (!tempFile.renameTo(journalFile) && !(journalFile.delete() && tempFile.renameTo(journalFile))) {
+            throw new IllegalStateException("Cannot write journal " + journalFile.getAbsolutePath());
+        }
+    }
+
+    private static void copy(final File source, final File target) throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = input.read(buffer)) > -1) {
+                    output.write(buffer, 0, len);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.mobeelizer.java;
+
+/**
+ * Listener notified about the statistics of every synchronization.
+ * 
+ * @since 1.8
+ * @see MobeelizerConfiguration#setSyncListener(MobeelizerSyncListener)
+ * @see MobeelizerSyncHistogram
+ */
+public interface MobeelizerSyncListener {
+
+    /**
+     * Method invoked after the synchronization has been confirmed, or after it has failed. It is not invoked for the
+     * synchronization that is never confirmed.
+     * 
+     * @param report
+     *            statistics of the synchronization
+     * @since 1.8
+     */
+    void onSyncFinished(final MobeelizerSyncReport report);
+
+}
@@ -0,0 +1,292 @@
+package com.mobeelizer.java;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Statistics of the single synchronization.
+ *
+ * @since 1.8
+ * @see MobeelizerSyncListener
+ */
+public class MobeelizerSyncReport {
+
+    /**
+     * Phase of the synchronization.
+     *
+     * @since 1.8
+     */
+    public enum Phase {
+        /**
+         * Writing entities and files to the archive sent to the cloud.
+         */
+        PREPARE_OUTPUT,
+        /**
+         * Sending the synchronization request.
+         */
+        SEND_REQUEST,
+        /**
+         * Waiting until the cloud processes the synchronization.
+         */
+        WAIT,
+        /**
+         * Downloading the synchronization data.
+         */
+        DOWNLOAD,
+        /**
+         * Unpacking the downloaded data.
+         */
+        PARSE_INPUT,
+        /**
+         * Invoking the callback, including the confirmation when it is done by the callback.
+         */
+        CALLBACK,
+        /**
+         * Confirming the synchronization.
+         */
+        CONFIRM
+    }
+
+    /**
+     * Category of the synchronization error.
+     *
+     * @since 1.8
+     */
+    public enum ErrorCategory {
+        /**
+         * Entities sent to the cloud are not valid.
+         */
+        VALIDATION,
+        /**
+         * The cloud returned an error.
+         */
+        SERVER,
+        /**
+         * Unexpected exception, for example I/O error.
+         */
+        EXCEPTION
+    }
+
+    private final Map<Phase, Long> durations = new EnumMap<Phase, Long>(Phase.class);
+
+    private final long started = System.nanoTime();
+
+    private long duration;
+
+    private Phase phase;
+
+    private long phaseStarted;
+
+    private long bytesUploaded;
+
+    private long bytesDownloaded;
+
+    private long tempFileBytes;
+
+    private int entitiesUploaded;
+
+    private int filesUploaded;
+
+    private int entitiesDownloaded;
+
+    private int filesDownloaded;
+
+    private Phase errorPhase;
+
+    private ErrorCategory errorCategory;
+
+    private boolean finished;
+
+    MobeelizerSyncReport() {
+    }
+
+    /**
+     * Gets durations of the phases in nanoseconds. Phases that have not been executed are missing.
+     *
+     * @return durations
+     * @since 1.8
+     */
+    public synchronized Map<Phase, Long> getDurations() {
+        return Collections.unmodifiableMap(new EnumMap<Phase, Long>(durations));
+    }
+
+    /**
+     * Gets duration of the whole synchronization in nanoseconds.
+     *
+     * @return duration
+     * @since 1.8
+     */
+    public synchronized long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Gets size of the archive sent to the cloud in bytes.
+     *
+     * @return uploaded bytes
+     * @since 1.8
+     */
+    public synchronized long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * Gets size of the downloaded archive in bytes.
+     *
+     * @return downloaded bytes
+     * @since 1.8
+     */
+    public synchronized long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * Gets size of the temporary files created by the synchronization in bytes.
+     *
+     * @return size of the temporary files
+     * @since 1.8
+     */
+    public synchronized long getTempFileBytes() {
+        return tempFileBytes;
+    }
+
+    /**
+     * Gets number of entities sent to the cloud.
+     *
+     * @return number of entities
+     * @since 1.8
+     */
+    public synchronized int getEntitiesUploaded() {
+        return entitiesUploaded;
+    }
+
+    /**
+     * Gets number of files sent to the cloud.
+     *
+     * @return number of files
+     * @since 1.8
+     */
+    public synchronized int getFilesUploaded() {
+        return filesUploaded;
+    }
+
+    /**
+     * Gets number of entities read by the callback.
+     *
+     * @return number of entities
+     * @since 1.8
+     */
+    public synchronized int getEntitiesDownloaded() {
+        return entitiesDownloaded;
+    }
+
+    /**
+     * Gets number of downloaded files.
+     *
+     * @return number of files
+     * @since 1.8
+     */
+    public synchronized int getFilesDownloaded() {
+        return filesDownloaded;
+    }
+
+    /**
+     * Gets phase in which the synchronization failed.
+     *
+     * @return phase or null if the synchronization finished with success
+     * @since 1.8
+     */
+    public synchronized Phase getErrorPhase() {
+        return errorPhase;
+    }
+
+    /**
+     * Gets category of the synchronization error.
+     *
+     * @return category or null if the synchronization finished with success
+     * @since 1.8
+     */
+    public synchronized ErrorCategory getErrorCategory() {
+        return errorCategory;
+    }
+
+    /**
+     * Finishes the current phase and starts the given one.
+     */
+    synchronized void startPhase(final Phase phase) {
+        finishPhase();
+        this.phase = phase;
+        phaseStarted = System.nanoTime();
+    }
+
+    synchronized void addDuration(final Phase phase, final long nanos) {
+        Long previous = durations.get(phase);
+        durations.put(phase, previous == null ? nanos : previous + nanos);
+    }
+
+    synchronized void failed(final ErrorCategory category) {
+        if (errorCategory == null) {
+            errorPhase = phase;
+            errorCategory = category;
+        }
+    }
+
+    /**
+     * Finishes the current phase without starting the next one.
+     */
+    synchronized void endPhase() {
+        finishPhase();
+    }
+
+    /**
+     * Finishes the synchronization.
+     *
+     * @return false if the synchronization has already been finished
+     */
+    synchronized boolean finish() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        finishPhase();
+        duration = System.nanoTime() - started;
+        return true;
+    }
+
+    synchronized void addBytesUploaded(final long bytes) {
+        bytesUploaded += bytes;
+    }
+
+    synchronized void addBytesDownloaded(final long bytes) {
+        bytesDownloaded += bytes;
+    }
+
+    synchronized void addTempFileBytes(final long bytes) {
+        tempFileBytes += bytes;
+    }
+
+    synchronized void entityUploaded() {
+        entitiesUploaded++;
+    }
+
+    synchronized void fileUploaded() {
+        filesUploaded++;
+    }
+
+    synchronized void entityDownloaded() {
+        entitiesDownloaded++;
+    }
+
+    synchronized void fileDownloaded() {
+        filesDownloaded++;
+    }
+
+    private void finishPhase() {
+        if (phase != null) {
+            addDuration(phase, System.nanoTime() - phaseStarted);
+            phase = null;
+        }
+    }
+
+}
@@ -1,21 +1,36 @@
 package com.mobeelizer.java;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mobeelizer.java.MobeelizerSyncReport.ErrorCategory;
+import com.mobeelizer.java.MobeelizerSyncReport.Phase;
+import com.mobeelizer.java.api.MobeelizerErrors;
 import com.mobeelizer.java.api.MobeelizerErrorsBuilder;
 import com.mobeelizer.java.api.MobeelizerFile;
 import com.mobeelizer.java.api.MobeelizerModel;
@@ -36,17 +51,44 @@ public class MobeelizerSyncService {
 
     private static final Logger logger = LoggerFactory.getLogger(MobeelizerSyncService.class);
 
+    private static final int DECODE_PENDING_CHUNKS = 16;
+
+    private static final int CONFLICT_HISTORY_PREFETCH = 8;
+
+    static final int DEFAULT_MODEL_BATCH_SIZE = 1000;
+
     private final MobeelizerConnectionService connectionService;
 
-    private final Map<Class<?>, MobeelizerModelImpl> definitionByClass = new HashMap<Class<?>, MobeelizerModelImpl>();
+    private final Map<Class<?>, MobeelizerModelImpl> definitionByClass = new IdentityHashMap<Class<?>, MobeelizerModelImpl>();
 
     private final Map<String, MobeelizerModelImpl> definitionByName = new HashMap<String, MobeelizerModelImpl>();
 
-    private boolean hasDefinition = false;
+    private final boolean hasDefinition;
+
+    private MobeelizerConnectionGuard connectionGuard = new MobeelizerConnectionGuard();
+
+    private MobeelizerSpillStorage spillStorage = new MobeelizerSpillStorage(null,
+            MobeelizerSpillStorage.DEFAULT_MEMORY_THRESHOLD);
+
+    private MobeelizerSyncJournal journal;
+
+    private MobeelizerSyncSnapshot snapshot;
+
+    private MobeelizerFileIndex fileIndex;
+
+    private MobeelizerLocalStore localStore;
+
+    private MobeelizerSyncListener listener;
+
+    private ExecutorService decodeExecutor;
+
+    private int decodeChunkSize;
+
+    private int modelBatchSize = DEFAULT_MODEL_BATCH_SIZE;
 
     public MobeelizerSyncService(final Set<MobeelizerModel> definition, final MobeelizerConnectionService connectionService) {
+        hasDefinition = definition != null;
         if (definition != null) {
-            hasDefinition = true;
             for (MobeelizerModel model : definition) {
                 definitionByClass.put(model.getMappingClass(), (MobeelizerModelImpl) model);
                 definitionByName.put(model.getName(), (MobeelizerModelImpl) model);
@@ -56,214 +98,813 @@ public class MobeelizerSyncService {
     }
 
     public void syncAll(final MobeelizerSyncCallback callback) {
-        sync(null, null, callback, true);
+        sync(null, null, callback, true, false, null);
+    }
+
+    public void syncAll(final MobeelizerSyncFilter filter, final MobeelizerSyncCallback callback) {
+        sync(null, null, callback, true, false, filter);
     }
 
     public void sync(final Iterable<Object> entities, final Iterable<MobeelizerFile> files, final MobeelizerSyncCallback callback) {
-        sync(entities, files, callback, false);
+        sync(entities, files, callback, false, false, null);
     }
 
-    public void getConflictHistory(final String model, String guid, final MobeelizerGetConflictHistoryCallback callback){
-        final MobeelizerConflictData conflictData;
-        
-    	File inputFile = null;
+    void syncMerged(final Iterable<Object> entities, final Iterable<MobeelizerFile> files, final MobeelizerSyncCallback callback) {
+        sync(entities, files, callback, false, true, null);
+    }
+
+    public void resumeSync(final MobeelizerSyncCallback callback) {
+        String ticket = journal != null ? journal.claimTicket() : null;
+
+        if (ticket == null) {
+            throw new IllegalStateException("There is no synchronization to resume.");
+        }
+
+        MobeelizerSyncReport report = new MobeelizerSyncReport();
+
+        boolean delivered = false;
+
         try {
-        	inputFile = connectionService.getConflictHistory(model, guid);
-        	
-        	conflictData = new MobeelizerConflictData(new FileInputStream(inputFile), File.createTempFile("mobeelizer", "input"));
-            
-        	callback.onFinishedWithSuccess(prepareConflictVersionsIterator(model, conflictData));
+            delivered = receiveSyncData(ticket, callback, report, false, null, null, null);
+        } catch (Exception e) {
+            report.failed(ErrorCategory.EXCEPTION);
+            callback.onSyncFinishedWithError(MobeelizerOperationErrorImpl.exception(e));
+        } finally {
+            if (!delivered) {
+                notifyListener(report);
+            }
         }
-        catch(Exception e){
-        	callback.onFinishedWithError(MobeelizerOperationErrorImpl.exception(e));
+    }
+
+    boolean hasPendingSync() {
+        return journal != null && journal.hasTicket();
+    }
+
+    void setConnectionGuard(final MobeelizerConnectionGuard connectionGuard) {
+        this.connectionGuard = connectionGuard;
+    }
+
+    void setSpillStorage(final MobeelizerSpillStorage spillStorage) {
+        this.spillStorage = spillStorage;
+    }
+
+    void setJournal(final MobeelizerSyncJournal journal) {
+        this.journal = journal;
+    }
+
+    void setSnapshot(final MobeelizerSyncSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    void setFileIndex(final MobeelizerFileIndex fileIndex) {
+        this.fileIndex = fileIndex;
+    }
+
+    void setLocalStore(final MobeelizerLocalStore localStore) {
+        this.localStore = localStore;
+    }
+
+    void setListener(final MobeelizerSyncListener listener) {
+        this.listener = listener;
+    }
+
+    void setDecodeExecutor(final ExecutorService decodeExecutor, final int decodeChunkSize) {
+        this.decodeExecutor = decodeExecutor;
+        this.decodeChunkSize = decodeChunkSize;
+    }
+
+    void setModelBatchSize(final int modelBatchSize) {
+        this.modelBatchSize = modelBatchSize;
+    }
+
+    public void getConflictHistory(final String model, final String guid, final MobeelizerGetConflictHistoryCallback callback) {
+        try {
+            callback.onFinishedWithSuccess(convertConflictVersions(readConflictVersions(model, guid, 0)));
+        } catch (Exception e) {
+            callback.onFinishedWithError(MobeelizerOperationErrorImpl.exception(e));
         }
-        finally{
-        	if (inputFile != null && !inputFile.delete()) {
-                logger.warn("Cannot delete file " + inputFile.getAbsolutePath());
+    }
+
+    public Iterable<MobeelizerConflictHistory> getConflictHistory(final String model, final Collection<String> guids,
+            final int latestVersions, final Executor executor) {
+        return new Iterable<MobeelizerConflictHistory>() {
+
+            @Override
+            public Iterator<MobeelizerConflictHistory> iterator() {
+                final Iterator<String> guidsIterator = guids.iterator();
+
+                final LinkedList<FutureTask<MobeelizerConflictHistory>> pending =
+                        new LinkedList<FutureTask<MobeelizerConflictHistory>>();
+
+                return new Iterator<MobeelizerConflictHistory>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        while (pending.size() < CONFLICT_HISTORY_PREFETCH && guidsIterator.hasNext()) {
+                            final String guid = guidsIterator.next();
+                            FutureTask<MobeelizerConflictHistory> task = new FutureTask<MobeelizerConflictHistory>(
+                                    new Callable<MobeelizerConflictHistory>() {
+
+                                        @Override
+                                        public MobeelizerConflictHistory call() {
+                                            return loadConflictHistory(model, guid, latestVersions);
+                                        }
+
+                                    });
+                            pending.add(task);
+                            try {
+                                executor.execute(task);
+                            } catch (RejectedExecutionException e) {
+                                // the task will be run by the iterating thread
+                            }
+                        }
+                        return !pending.isEmpty();
+                    }
+
+                    @Override
+                    public MobeelizerConflictHistory next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        FutureTask<MobeelizerConflictHistory> task = pending.removeFirst();
+                        // runs the task in this thread if the executor has not started it yet
+                        task.run();
+                        try {
+                            return task.get();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while getting conflict history", e);
+                        } catch (ExecutionException e) {
+                            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
             }
+
+        };
+    }
+
+    private MobeelizerConflictHistory loadConflictHistory(final String model, final String guid, final int latestVersions) {
+        try {
+            return new MobeelizerConflictHistoryImpl(guid,
+                    prepareConflictVersionsIterator(readConflictVersions(model, guid, latestVersions)), null);
+        } catch (Exception e) {
+            return new MobeelizerConflictHistoryImpl(guid, new ArrayList<MobeelizerEntityVersion>(0),
+                    MobeelizerOperationErrorImpl.exception(e));
+        }
+    }
+
+    /**
+     * Downloads versions of the conflicted entity and deletes the downloaded files.
+     *
+     * @param latestVersions
+     *            maximum number of the latest versions to keep, 0 to keep all
+     */
+    private List<MobeelizerConflictVersionJson> readConflictVersions(final String model, final String guid,
+            final int latestVersions) throws IOException {
+        File inputFile = null;
+        File dataFile = null;
+        InputStream input = null;
+
+        try {
+            inputFile = getConflictHistoryData(model, guid);
+            dataFile = spillStorage.createTempFile("input");
+            input = new FileInputStream(inputFile);
+
+            List<MobeelizerConflictVersionJson> versions = new ArrayList<MobeelizerConflictVersionJson>();
+
+            for (MobeelizerConflictVersionJson version : new MobeelizerConflictData(input, dataFile).getVersionsIterator()) {
+                versions.add(version);
+            }
+
+            if (latestVersions <= 0 || versions.size() <= latestVersions) {
+                return versions;
+            }
+
+            List<MobeelizerConflictVersionJson> newestFirst = new ArrayList<MobeelizerConflictVersionJson>(versions);
+            Collections.sort(newestFirst, new Comparator<MobeelizerConflictVersionJson>() {
+
+                @Override
+                public int compare(final MobeelizerConflictVersionJson o1, final MobeelizerConflictVersionJson o2) {
+                    if (o1.getDate() == null || o2.getDate() == null) {
+                        return o1.getDate() == null ? (o2.getDate() == null ? 0 : 1) : -1;
+                    }
+                    return o2.getDate().compareTo(o1.getDate());
+                }
+
+            });
+
+            Set<MobeelizerConflictVersionJson> latest = Collections
+                    .newSetFromMap(new IdentityHashMap<MobeelizerConflictVersionJson, Boolean>());
+            latest.addAll(newestFirst.subList(0, latestVersions));
+
+            List<MobeelizerConflictVersionJson> result = new ArrayList<MobeelizerConflictVersionJson>(latestVersions);
+            for (MobeelizerConflictVersionJson version : versions) {
+                if (latest.contains(version)) {
+                    result.add(version);
+                }
+            }
+            return result;
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            spillStorage.delete(inputFile);
+            spillStorage.delete(dataFile);
         }
     }
 
     private void sync(final Iterable<Object> outputEntities, final Iterable<MobeelizerFile> outputFiles,
-            final MobeelizerSyncCallback callback, final boolean isAllSynchronization) {
-        final MobeelizerInputData inputData;
+            final MobeelizerSyncCallback callback, final boolean isAllSynchronization, final boolean merge,
+            final MobeelizerSyncFilter filter) {
+        MobeelizerSyncReport report = new MobeelizerSyncReport();
 
         File outputFile = null;
-        File inputFile = null;
+
+        MobeelizerSyncSnapshot.Changes changes = null;
+
+        MobeelizerFileIndex.Changes fileChanges = null;
+
+        boolean delivered = false;
 
         try {
             final String ticket;
 
             if (isAllSynchronization) {
-                MobeelizerOperationStatus<String> syncResult = connectionService.sendSyncAllRequest();
+                report.startPhase(Phase.SEND_REQUEST);
+                MobeelizerOperationStatus<String> syncResult = sendSyncAllRequest();
                 if (syncResult.getError() != null) {
+                    report.failed(ErrorCategory.SERVER);
                     callback.onSyncFinishedWithError(syncResult.getError());
                     return;
                 }
                 ticket = syncResult.getContent();
             } else {
-                outputFile = File.createTempFile("mobeelizer", "sync");
+                report.startPhase(Phase.PREPARE_OUTPUT);
+                outputFile = spillStorage.createTempFile("sync");
 
                 MobeelizerErrorsBuilder errorsBuilder = new MobeelizerErrorsBuilder();
 
-                prepareOutputFile(outputFile, outputEntities, outputFiles, errorsBuilder);
+                if (snapshot != null) {
+                    changes = snapshot.newChanges();
+                }
+
+                if (fileIndex != null) {
+                    fileChanges = fileIndex.newChanges();
+                }
+
+                prepareOutputFile(outputFile, outputEntities, outputFiles, merge, errorsBuilder, report, changes,
+                        fileChanges);
 
                 if (!errorsBuilder.hasNoErrors()) {
+                    report.failed(ErrorCategory.VALIDATION);
                     callback.onSyncFinishedWithError(errorsBuilder.createWhenErrors());
                     return;
                 }
-                MobeelizerOperationStatus<String> syncResult = connectionService.sendSyncDiffRequest(outputFile);
+
+                report.addBytesUploaded(outputFile.length());
+                report.addTempFileBytes(outputFile.length());
+
+                report.startPhase(Phase.SEND_REQUEST);
+                MobeelizerOperationStatus<String> syncResult = sendSyncDiffRequest(outputFile);
                 if (syncResult.getError() != null) {
+                    report.failed(ErrorCategory.SERVER);
                     callback.onSyncFinishedWithError(syncResult.getError());
                     return;
                 }
                 ticket = syncResult.getContent();
             }
 
-            MobeelizerOperationError waitResult = connectionService.waitUntilSyncRequestComplete(ticket);
-            if (waitResult != null) {
-                callback.onSyncFinishedWithError(waitResult);
-                return;
+            if (journal != null) {
+                journal.ticketCreated(ticket);
+            }
+
+            delivered = receiveSyncData(ticket, callback, report, isAllSynchronization, changes, fileChanges, filter);
+        } catch (Exception e) {
+            report.failed(ErrorCategory.EXCEPTION);
+            callback.onSyncFinishedWithError(MobeelizerOperationErrorImpl.exception(e));
+        } finally {
+            spillStorage.delete(outputFile);
+            if (!delivered) {
+                notifyListener(report);
+            }
+        }
+    }
+
+    /**
+     * Finishes the report and passes it to the listener, unless it has been passed before.
+     */
+    private void notifyListener(final MobeelizerSyncReport report) {
+        if (!report.finish()) {
+            return;
+        }
+        if (listener != null) {
+            try {
+                listener.onSyncFinished(report);
+            } catch (RuntimeException e) {
+                logger.warn("Sync listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private MobeelizerOperationStatus<String> sendSyncAllRequest() {
+        return connectionGuard.executeStatus(false, new MobeelizerConnectionGuard.StatusOperation<String>() {
+
+            @Override
+            MobeelizerOperationStatus<String> execute() {
+                return connectionService.sendSyncAllRequest();
+            }
+
+        });
+    }
+
+    private MobeelizerOperationStatus<String> sendSyncDiffRequest(final File outputFile) {
+        return connectionGuard.executeStatus(false, new MobeelizerConnectionGuard.StatusOperation<String>() {
+
+            @Override
+            MobeelizerOperationStatus<String> execute() {
+                return connectionService.sendSyncDiffRequest(outputFile);
+            }
+
+        });
+    }
+
+    private MobeelizerOperationError waitUntilSyncRequestComplete(final String ticket) {
+        return connectionGuard.executeError(true, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.waitUntilSyncRequestComplete(ticket);
+            }
+
+        });
+    }
+
+    private File getSyncData(final String ticket) throws IOException {
+        return connectionGuard.execute(true, new MobeelizerConnectionGuard.Operation<File>() {
+
+            @Override
+            File execute() throws IOException {
+                return connectionService.getSyncData(ticket);
+            }
+
+        });
+    }
+
+    private MobeelizerOperationError confirmTask(final String ticket) {
+        return connectionGuard.executeError(false, new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.confirmTask(ticket);
+            }
+
+        });
+    }
+
+    private File getConflictHistoryData(final String model, final String guid) throws IOException {
+        return connectionGuard.execute(true, new MobeelizerConnectionGuard.Operation<File>() {
+
+            @Override
+            File execute() throws IOException {
+                return connectionService.getConflictHistory(model, guid);
+            }
+
+        });
+    }
+
+    /**
+     * Downloads the data of the synchronization and passes it to the callback.
+     *
+     * @return true if the data has been passed to the callback and the report will be passed to the listener on confirm
+     */
+    private boolean receiveSyncData(final String ticket, final MobeelizerSyncCallback callback, final MobeelizerSyncReport report,
+            final boolean isAllSynchronization, final MobeelizerSyncSnapshot.Changes changes,
+            final MobeelizerFileIndex.Changes fileChanges, final MobeelizerSyncFilter filter) throws IOException {
+        final MobeelizerInputData inputData;
+
+        File inputFile = journal != null ? journal.getData(ticket) : null;
+
+        final MobeelizerSyncSnapshot.Changes snapshotChanges = changes == null && snapshot != null ? snapshot.newChanges()
+                : changes;
+
+        boolean delivered = false;
+
+        // released in the finally block unless the data has been passed to the callback, which releases it on confirm
+        MobeelizerInputData openInputData = null;
+        MobeelizerInputFiles openInputFiles = null;
+        File openDataFile = null;
+
+        try {
+            if (inputFile == null) {
+                report.startPhase(Phase.WAIT);
+                MobeelizerOperationError waitResult = waitUntilSyncRequestComplete(ticket);
+                if (waitResult != null) {
+                    if (journal != null) {
+                        journal.waitFailed(ticket);
+                    }
+                    report.failed(ErrorCategory.SERVER);
+                    callback.onSyncFinishedWithError(waitResult);
+                    return false;
+                }
+
+                report.startPhase(Phase.DOWNLOAD);
+                inputFile = getSyncData(ticket);
+
+                if (journal != null) {
+                    inputFile = journal.dataDownloaded(ticket, inputFile);
+                }
+            }
+
+            report.addBytesDownloaded(inputFile.length());
+            report.addTempFileBytes(inputFile.length());
+
+            report.startPhase(Phase.PARSE_INPUT);
+            final File dataFile = spillStorage.createTempFile("input");
+            openDataFile = dataFile;
+            InputStream input = new FileInputStream(inputFile);
+            try {
+                inputData = new MobeelizerInputData(input, dataFile);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            } catch (RuntimeException e) {
+                input.close();
+                throw e;
+            }
+            openInputData = inputData;
+            report.addTempFileBytes(dataFile.length());
+
+            for (Iterator<String> files = inputData.getFiles().iterator(); files.hasNext(); files.next()) {
+                report.fileDownloaded();
             }
 
-            inputFile = connectionService.getSyncData(ticket);
+            final MobeelizerInputFiles inputFiles = new MobeelizerInputFiles(inputData, spillStorage);
+            openInputFiles = inputFiles;
 
-            inputData = new MobeelizerInputData(new FileInputStream(inputFile), File.createTempFile("mobeelizer", "input"));
+            report.startPhase(Phase.CALLBACK);
 
-            callback.onSyncFinishedWithSuccess(prepareInputEntitiesIterator(inputData), prepareInputFileIterator(inputData),
+            Iterable<Object> entities;
+
+            if (callback instanceof MobeelizerBatchSyncCallback) {
+                deliverModelBatches(inputData, filter, (MobeelizerBatchSyncCallback) callback, report);
+                entities = Collections.emptyList();
+            } else {
+                entities = prepareInputEntitiesIterator(inputData, filter, report);
+            }
+
+            callback.onSyncFinishedWithSuccess(entities, inputFiles,
                     inputData.getDeletedFiles(), new MobeelizerConfirmSyncCallback() {
 
                         @Override
                         public void confirm() {
+                            report.startPhase(Phase.CONFIRM);
                             try {
-                                MobeelizerOperationError confirmResult = connectionService.confirmTask(ticket);
+                                try {
+                                    saveReceivedData(inputData, snapshotChanges, fileChanges,
+                                            journal != null ? journal.getOrder(ticket) : 0, isAllSynchronization);
+                                } catch (RuntimeException e) {
+                                    logger.warn("Cannot save received data: " + e.getMessage(), e);
+                                    if (journal != null) {
+                                        journal.released(ticket);
+                                    }
+                                    report.failed(ErrorCategory.EXCEPTION);
+                                    callback.onSyncFinishedWithError(MobeelizerOperationErrorImpl.exception(e));
+                                    return;
+                                }
+                                MobeelizerOperationError confirmResult = confirmTask(ticket);
                                 if (confirmResult != null) {
                                     logger.warn("Cannot confirm task: " + confirmResult.getMessage());
+                                    if (journal != null) {
+                                        journal.released(ticket);
+                                    }
+                                    report.failed(ErrorCategory.SERVER);
                                     callback.onSyncFinishedWithError(confirmResult);
                                     return;
                                 }
+                                if (journal != null) {
+                                    journal.confirmed(ticket);
+                                }
+                                if (fileChanges != null) {
+                                    fileChanges.commit();
+                                }
                             } finally {
+                                inputFiles.close();
                                 if (inputData != null) {
                                     inputData.close();
                                 }
+                                spillStorage.delete(dataFile);
+                                notifyListener(report);
                             }
                         }
 
                     });
-        } catch (Exception e) {
-            callback.onSyncFinishedWithError(MobeelizerOperationErrorImpl.exception(e));
+            report.endPhase();
+            delivered = true;
         } finally {
-            if (outputFile != null && !outputFile.delete()) {
-                logger.warn("Cannot delete file " + outputFile.getAbsolutePath());
+            if (!delivered) {
+                if (openInputFiles != null) {
+                    openInputFiles.close();
+                }
+                if (openInputData != null) {
+                    openInputData.close();
+                }
+                spillStorage.delete(openDataFile);
             }
-            if (inputFile != null && !inputFile.delete()) {
-                logger.warn("Cannot delete file " + inputFile.getAbsolutePath());
+            if (journal == null) {
+                spillStorage.delete(inputFile);
+            } else if (!delivered) {
+                journal.released(ticket);
             }
         }
+
+        return delivered;
     }
 
-    private Iterable<MobeelizerFile> prepareInputFileIterator(final MobeelizerInputData inputData) throws IOException {
-        List<MobeelizerFile> files = new ArrayList<MobeelizerFile>();
+    /**
+     * Saves the state and the entities received in the synchronization before it is confirmed, so they are not lost when saving
+     * fails after the cloud has dropped the data. Saving the same synchronization again after resume is harmless. The local
+     * store gets all received entities, regardless of the filter, so it stays complete. Files deleted by the cloud are removed
+     * from the file index, so they are sent again if the caller adds them back.
+     */
+    private void saveReceivedData(final MobeelizerInputData inputData, final MobeelizerSyncSnapshot.Changes snapshotChanges,
+            final MobeelizerFileIndex.Changes fileChanges, final long order, final boolean isAllSynchronization) {
+        if (fileIndex != null) {
+            fileIndex.removeFiles(inputData.getDeletedFiles(), isAllSynchronization);
+        }
+        if (fileChanges != null) {
+            fileChanges.removeFiles(inputData.getDeletedFiles());
+        }
 
-        for (final String file : inputData.getFiles()) {
-            InputStream input = inputData.getFile(file);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = input.read(buffer)) > -1) {
-                baos.write(buffer, 0, len);
+        MobeelizerLocalStore.Changes storeChanges = localStore != null ? localStore.newChanges(order, isAllSynchronization)
+                : null;
+        if (snapshotChanges == null && storeChanges == null) {
+            return;
+        }
+        try {
+            for (MobeelizerJsonEntity entity : inputData.getInputData()) {
+                if (snapshotChanges != null) {
+                    snapshotChanges.received(entity);
+                }
+                if (storeChanges != null) {
+                    storeChanges.received(entity);
+                }
+            }
+            if (snapshotChanges != null) {
+                snapshotChanges.commit(order, isAllSynchronization);
+            }
+            if (storeChanges != null) {
+                storeChanges.commit();
             }
-            baos.flush();
-            final InputStream copyInput = new ByteArrayInputStream(baos.toByteArray());
+        } finally {
+            if (storeChanges != null) {
+                storeChanges.close();
+            }
+        }
+    }
 
-            files.add(new MobeelizerFile() {
+    private MobeelizerModelImpl getModel(final Class<?> clazz) {
+        MobeelizerModelImpl model = definitionByClass.get(clazz);
+        if (model == null) {
+            throw new IllegalStateException("Class " + clazz.getCanonicalName() + " not mapped.");
+        }
+        return model;
+    }
 
-                @Override
-                public String getName() {
-                    return null;
-                }
+    private MobeelizerModelImpl getModel(final String name) {
+        MobeelizerModelImpl model = definitionByName.get(name);
+        if (model == null) {
+            throw new IllegalStateException("Class for model " + name + " not mapped.");
+        }
+        return model;
+    }
 
-                @Override
-                public InputStream getInputStream() {
-                    return copyInput;
-                }
+    void deliverModelBatches(final MobeelizerInputData inputData, final MobeelizerSyncFilter filter,
+            final MobeelizerBatchSyncCallback callback, final MobeelizerSyncReport report) {
+        Map<String, List<MobeelizerJsonEntity>> batches = new LinkedHashMap<String, List<MobeelizerJsonEntity>>();
 
-                @Override
-                public String getGuid() {
-                    return file;
+        for (Iterator<MobeelizerJsonEntity> i = filterInputEntities(inputData, filter); i.hasNext();) {
+            MobeelizerJsonEntity entity = i.next();
+            List<MobeelizerJsonEntity> batch = batches.get(entity.getModel());
+            if (batch == null) {
+                batch = new ArrayList<MobeelizerJsonEntity>();
+                batches.put(entity.getModel(), batch);
+            }
+            batch.add(entity);
+            if (report != null) {
+                report.entityDownloaded();
+            }
+            if (batch.size() >= modelBatchSize) {
+                batches.remove(entity.getModel());
+                callback.onModelBatch(createModelBatch(entity.getModel(), batch));
+            }
+        }
+
+        for (Map.Entry<String, List<MobeelizerJsonEntity>> batch : batches.entrySet()) {
+            callback.onModelBatch(createModelBatch(batch.getKey(), batch.getValue()));
+        }
+    }
+
+    private MobeelizerModelBatch createModelBatch(final String name, final List<MobeelizerJsonEntity> entities) {
+        return new MobeelizerModelBatch(this, hasDefinition ? getModel(name) : null, name, entities);
+    }
+
+    /**
+     * Skips entities that do not match the filter and entities of models that are not in the definition.
+     */
+    private Iterator<MobeelizerJsonEntity> filterInputEntities(final MobeelizerInputData inputData,
+            final MobeelizerSyncFilter filter) {
+        final Iterator<MobeelizerJsonEntity> iterator = inputData.getInputData().iterator();
+
+        if (!hasDefinition && filter == null) {
+            return iterator;
+        }
+
+        return new Iterator<MobeelizerJsonEntity>() {
+
+            private MobeelizerJsonEntity next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    MobeelizerJsonEntity entity = iterator.next();
+                    if ((!hasDefinition || definitionByName.containsKey(entity.getModel()))
+                            && (filter == null || filter.accepts(entity.getModel(), entity.getOwner()))) {
+                        next = entity;
+                    }
                 }
+                return next != null;
+            }
 
-                @Override
-                public File getFile() {
-                    throw new UnsupportedOperationException();
+            @Override
+            public MobeelizerJsonEntity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                MobeelizerJsonEntity entity = next;
+                next = null;
+                return entity;
+            }
 
-            });
-        }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
 
-        return files;
+        };
     }
 
-    private MobeelizerModelImpl getModel(final Class<?> clazz) {
-        if (!definitionByClass.containsKey(clazz)) {
-            throw new IllegalStateException("Class " + clazz.getCanonicalName() + " not mapped.");
-        }
-        return definitionByClass.get(clazz);
+    Iterable<Object> prepareInputEntitiesIterator(final MobeelizerInputData inputData, final MobeelizerSyncFilter filter,
+            final MobeelizerSyncReport report) {
+        return new Iterable<Object>() {
+
+            @Override
+            public Iterator<Object> iterator() {
+                final Iterator<MobeelizerJsonEntity> iterator = filterInputEntities(inputData, filter);
+
+                final Iterator<Object> decoder = decodeExecutor != null ? new MobeelizerParallelDecoder(MobeelizerSyncService.this,
+                        iterator, decodeExecutor, decodeChunkSize, DECODE_PENDING_CHUNKS) : null;
+
+                return new Iterator<Object>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return decoder != null ? decoder.hasNext() : iterator.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        Object entity = decoder != null ? decoder.next() : getEntityFromJsonEntity(iterator.next());
+                        if (report != null) {
+                            report.entityDownloaded();
+                        }
+                        return entity;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
+            }
+
+        };
     }
 
-    private MobeelizerModelImpl getModel(final String name) {
-        if (!definitionByName.containsKey(name)) {
-            throw new IllegalStateException("Class for model " + name + " not mapped.");
+    Object getEntityFromJsonEntity(final MobeelizerJsonEntity entity) {
+        if (hasDefinition) {
+            return getModel(entity.getModel()).getEntityFromJsonEntity(entity);
+        } else {
+            Map<String, String> entityMap = new HashMap<String, String>(entity.getFields());
+            entityMap.put("model", entity.getModel());
+            entityMap.put("guid", entity.getGuid());
+            entityMap.put("owner", entity.getOwner());
+            entityMap.put("conflicted", (entity.getConflictState() != ConflictState.NO_IN_CONFLICT) + "");
+            return entityMap;
         }
-        return definitionByName.get(name);
     }
 
-    private Iterable<Object> prepareInputEntitiesIterator(final MobeelizerInputData inputData) {
+    /**
+     * Converts all versions before they are returned, so conversion errors are reported to the callback. Entities without the
+     * definition are maps without the conflicted flag, as returned before the history for many guids was added.
+     */
+    private List<MobeelizerEntityVersion> convertConflictVersions(final List<MobeelizerConflictVersionJson> versions) {
+        List<MobeelizerEntityVersion> entities = new ArrayList<MobeelizerEntityVersion>(versions.size());
 
-        List<Object> entities = new ArrayList<Object>();
-
-        for (MobeelizerJsonEntity entity : inputData.getInputData()) {
+        for (MobeelizerConflictVersionJson entity : versions) {
+            MobeelizerEntityVersionImpl version = new MobeelizerEntityVersionImpl();
             if (hasDefinition) {
-                entities.add(getModel(entity.getModel()).getEntityFromJsonEntity(entity));
+                version.setEntity(getModel(entity.getModel()).getEntityFromJsonEntity(entity));
             } else {
                 Map<String, String> entityMap = new HashMap<String, String>(entity.getFields());
                 entityMap.put("model", entity.getModel());
                 entityMap.put("guid", entity.getGuid());
                 entityMap.put("owner", entity.getOwner());
-                entityMap.put("conflicted", (entity.getConflictState() != ConflictState.NO_IN_CONFLICT) + "");
-                entities.add(entityMap);
+                version.setEntity(entityMap);
             }
+            version.setUser(entity.getUser());
+            version.setDevice(entity.getDevice());
+            version.setDate(entity.getDate());
+            entities.add(version);
         }
         return entities;
     }
 
-    private  Iterable<MobeelizerEntityVersion> prepareConflictVersionsIterator(final String model, MobeelizerConflictData data){
-        List<MobeelizerEntityVersion> entities = new ArrayList<MobeelizerEntityVersion>();
+    private Iterable<MobeelizerEntityVersion> prepareConflictVersionsIterator(final List<MobeelizerConflictVersionJson> versions) {
+        return new Iterable<MobeelizerEntityVersion>() {
 
-        for (MobeelizerConflictVersionJson entity : data.getVersionsIterator()) {
-            if (hasDefinition) {
-            	MobeelizerEntityVersionImpl version = new MobeelizerEntityVersionImpl();
-            	version.setEntity(getModel(entity.getModel()).getEntityFromJsonEntity(entity));
-            	version.setUser(entity.getUser());
-            	version.setDevice(entity.getDevice());
-            	version.setDate(entity.getDate());
-                entities.add(version);
-            } else {
-            	Map<String, String> entityMap = new HashMap<String, String>(entity.getFields());
-            	entityMap.put("model", entity.getModel());
-                entityMap.put("guid", entity.getGuid());
-                entityMap.put("owner", entity.getOwner());
-            	MobeelizerEntityVersionImpl version = new MobeelizerEntityVersionImpl();
-            	version.setUser(entity.getUser());
-            	version.setDevice(entity.getDevice());
-            	version.setDate(entity.getDate());
-                version.setEntity(entityMap);
-                entities.add(version);
+            @Override
+            public Iterator<MobeelizerEntityVersion> iterator() {
+                final Iterator<MobeelizerConflictVersionJson> iterator = versions.iterator();
+
+                return new Iterator<MobeelizerEntityVersion>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public MobeelizerEntityVersion next() {
+                        MobeelizerConflictVersionJson entity = iterator.next();
+                        MobeelizerEntityVersionImpl version = new MobeelizerEntityVersionImpl();
+                        version.setEntity(getEntityFromJsonEntity(entity));
+                        version.setUser(entity.getUser());
+                        version.setDevice(entity.getDevice());
+                        version.setDate(entity.getDate());
+                        return version;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
             }
-        }
-        return entities;
+
+        };
     }
     
+    private static class MobeelizerConflictHistoryImpl implements MobeelizerConflictHistory {
+
+        private final String guid;
+
+        private final Iterable<MobeelizerEntityVersion> versions;
+
+        private final MobeelizerOperationError error;
+
+        MobeelizerConflictHistoryImpl(final String guid, final Iterable<MobeelizerEntityVersion> versions,
+                final MobeelizerOperationError error) {
+            this.guid = guid;
+            this.versions = versions;
+            this.error = error;
+        }
+
+        @Override
+        public String getGuid() {
+            return guid;
+        }
+
+        @Override
+        public Iterable<MobeelizerEntityVersion> getVersions() {
+            return versions;
+        }
+
+        @Override
+        public MobeelizerOperationError getError() {
+            return error;
+        }
+
+    }
+
     private class MobeelizerEntityVersionImpl implements MobeelizerEntityVersion {
     	
     	private String user;
@@ -307,36 +948,49 @@ public class MobeelizerSyncService {
     	}
     }
     
-    private void prepareOutputFile(final File outputFile, final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
-            final MobeelizerErrorsBuilder errors) {
+    void prepareOutputFile(final File outputFile, final Iterable<Object> entities, final Iterable<MobeelizerFile> files,
+            final boolean merge, final MobeelizerErrorsBuilder errors, final MobeelizerSyncReport report,
+            final MobeelizerSyncSnapshot.Changes changes, final MobeelizerFileIndex.Changes fileChanges) {
         MobeelizerOutputData outputData = null;
+        File dataFile = null;
 
         try {
-            outputData = new MobeelizerOutputData(outputFile, File.createTempFile("mobeelizer", "output"));
+            dataFile = spillStorage.createTempFile("output");
+            outputData = new MobeelizerOutputData(outputFile, dataFile);
 
             if (entities != null) {
+                Map<String, MobeelizerJsonEntity> mergedEntities = new LinkedHashMap<String, MobeelizerJsonEntity>();
+
                 for (Object entity : entities) {
-                    if (hasDefinition) {
-                        outputData.writeEntity(getModel(entity.getClass()).getJsonEntityFromEntity(entity, errors));
+                    MobeelizerJsonEntity jsonEntity = getJsonEntityFromEntity(entity, errors);
+                    if (merge && jsonEntity != null) {
+                        String key = jsonEntity.getModel() + "/" + jsonEntity.getGuid();
+                        mergedEntities.remove(key);
+                        mergedEntities.put(key, jsonEntity);
                     } else {
-                        @SuppressWarnings("unchecked")
-                        Map<String, String> entityMap = new HashMap<String, String>((Map<String, String>) entity);
-                        MobeelizerJsonEntity jsonEntity = new MobeelizerJsonEntity();
-                        jsonEntity.setModel(entityMap.get("model"));
-                        jsonEntity.setGuid(entityMap.get("guid"));
-                        jsonEntity.setOwner(entityMap.get("owner"));
-                        entityMap.remove("model");
-                        entityMap.remove("guid");
-                        entityMap.remove("owner");
-                        jsonEntity.setFields(entityMap);
-                        outputData.writeEntity(jsonEntity);
+                        writeEntity(outputData, jsonEntity, report, changes);
                     }
                 }
+
+                for (MobeelizerJsonEntity jsonEntity : mergedEntities.values()) {
+                    writeEntity(outputData, jsonEntity, report, changes);
+                }
             }
 
             if (files != null) {
+                Map<String, MobeelizerFile> mergedFiles = new LinkedHashMap<String, MobeelizerFile>();
+
                 for (MobeelizerFile file : files) {
-                    outputData.writeFile(file.getGuid(), file.getInputStream());
+                    if (merge) {
+                        mergedFiles.remove(file.getGuid());
+                        mergedFiles.put(file.getGuid(), file);
+                    } else {
+                        writeFile(outputData, file, report, fileChanges);
+                    }
+                }
+
+                for (MobeelizerFile file : mergedFiles.values()) {
+                    writeFile(outputData, file, report, fileChanges);
                 }
             }
 
@@ -346,6 +1000,68 @@ public class MobeelizerSyncService {
             if (outputData != null) {
                 outputData.close();
             }
+            spillStorage.delete(dataFile);
+        }
+    }
+
+    /**
+     * Converts the entities only to check them.
+     *
+     * @return errors or null if all entities are valid
+     */
+    MobeelizerErrors validateEntities(final Iterable<Object> entities) {
+        MobeelizerErrorsBuilder errors = new MobeelizerErrorsBuilder();
+        for (Object entity : entities) {
+            getJsonEntityFromEntity(entity, errors);
+        }
+        return errors.hasNoErrors() ? null : errors.createWhenErrors();
+    }
+
+    private MobeelizerJsonEntity getJsonEntityFromEntity(final Object entity, final MobeelizerErrorsBuilder errors) {
+        if (hasDefinition) {
+            return getModel(entity.getClass()).getJsonEntityFromEntity(entity, errors);
+        } else {
+            @SuppressWarnings("unchecked")
+            Map<String, String> entityMap = new HashMap<String, String>((Map<String, String>) entity);
+            MobeelizerJsonEntity jsonEntity = new MobeelizerJsonEntity();
+            jsonEntity.setModel(entityMap.get("model"));
+            jsonEntity.setGuid(entityMap.get("guid"));
+            jsonEntity.setOwner(entityMap.get("owner"));
+            entityMap.remove("model");
+            entityMap.remove("guid");
+            entityMap.remove("owner");
+            jsonEntity.setFields(entityMap);
+            return jsonEntity;
+        }
+    }
+
+    private void writeEntity(final MobeelizerOutputData outputData, final MobeelizerJsonEntity jsonEntity,
+            final MobeelizerSyncReport report, final MobeelizerSyncSnapshot.Changes changes) {
+        if (changes != null && jsonEntity != null && !changes.hasChanged(jsonEntity)) {
+            return;
+        }
+        outputData.writeEntity(jsonEntity);
+        if (report != null) {
+            report.entityUploaded();
+        }
+    }
+
+    private void writeFile(final MobeelizerOutputData outputData, final MobeelizerFile file, final MobeelizerSyncReport report,
+            final MobeelizerFileIndex.Changes fileChanges) throws IOException {
+        if (fileChanges != null) {
+            if (!fileChanges.writeFile(outputData, file)) {
+                return;
+            }
+        } else {
+            InputStream input = file.getInputStream();
+            try {
+                outputData.writeFile(file.getGuid(), input);
+            } finally {
+                input.close();
+            }
+        }
+        if (report != null) {
+            report.fileUploaded();
         }
     }
 }
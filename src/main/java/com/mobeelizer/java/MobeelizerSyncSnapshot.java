@@ -0,0 +1,277 @@
+package com.mobeelizer.java;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mobeelizer.java.sync.MobeelizerJsonEntity;
+
+/**
+ * Hashes of entities in the state known to the cloud, kept in the state directory. The hash of the entity is updated when it is
+ * sent in the synchronization and when it is received from the cloud, so it always matches the last version seen by both
+ * sides. Entities whose hash has not changed are not sent at all, changed entities are always sent whole.
+ *
+ * Every hash keeps the order of the synchronization that set it, so hashes of the older synchronization confirmed after the
+ * newer one are ignored. The file is a log with one hash per line. Changes are appended to it, the whole file is rewritten
+ * after the full synchronization and when the log grows twice as large as the number of entities.
+ */
+class MobeelizerSyncSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(MobeelizerSyncSnapshot.class);
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int COMPACT_MIN_LINES = 1000;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final File snapshotFile;
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private int lines;
+
+    MobeelizerSyncSnapshot(final File directory, final String name) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        snapshotFile = new File(directory, name + ".snapshot");
+        load();
+    }
+
+    Changes newChanges() {
+        return new Changes();
+    }
+
+    private synchronized Entry get(final String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Applies the changes. The file is written before the hashes are changed in memory, so the failed write leaves the
+     * snapshot unchanged.
+     */
+    private synchronized void commit(final Map<String, Long> changes, final long order, final boolean replace) {
+        Map<String, Entry> accepted = new HashMap<String, Entry>();
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            Entry entry = entries.get(change.getKey());
+            if (entry == null || !entry.isNewerThan(order)) {
+                accepted.put(change.getKey(), new Entry(change.getValue(), order));
+            }
+        }
+
+        if (replace || lines + accepted.size() > Math.max(COMPACT_MIN_LINES, 2 * entries.size())) {
+            Map<String, Entry> updated = new HashMap<String, Entry>(entries);
+            if (replace) {
+                // entities missing in the full synchronization are not known to the cloud anymore
+                for (Iterator<Map.Entry<String, Entry>> i = updated.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry<String, Entry> entry = i.next();
+                    if (!changes.containsKey(entry.getKey()) && !entry.getValue().isNewerThan(order)) {
+                        i.remove();
+                    }
+                }
+            }
+            updated.putAll(accepted);
+            store(updated);
+            entries = updated;
+            lines = updated.size();
+        } else if (!accepted.isEmpty()) {
+            append(accepted);
+            entries.putAll(accepted);
+            lines += accepted.size();
+        }
+    }
+
+    private void load() {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), CHARSET));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    String[] columns = line.split("\t");
+                    if (columns.length != 3) {
+                        // the last line may be incomplete if the process stopped while appending to the file
+                        logger.warn("Skipping invalid line " + lines + " of snapshot " + snapshotFile.getAbsolutePath());
+                        continue;
+                    }
+                    entries.put(columns[0], new Entry(Long.parseLong(columns[1], Character.MAX_RADIX), Long
+                            .parseLong(columns[2])));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read snapshot " + snapshotFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            entries.clear();
+            lines = 0;
+        } catch (RuntimeException e) {
+            logger.warn("Cannot read snapshot " + snapshotFile.getAbsolutePath() + ": " + e.getMessage(), e);
+            entries.clear();
+            lines = 0;
+        }
+    }
+
+    private void append(final Map<String, Entry> changes) {
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(snapshotFile, true), CHARSET));
+            try {
+                write(writer, changes);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write snapshot " + snapshotFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void store(final Map<String, Entry> snapshot) {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET));
+            try {
+                write(writer, snapshot);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write snapshot " + snapshotFile.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+        if (!tempFile.renameTo(snapshotFile) && !(snapshotFile.delete() && tempFile.renameTo(snapshotFile))) {
+            throw new IllegalStateException("Cannot write snapshot " + snapshotFile.getAbsolutePath());
+        }
+    }
+
+    private static void write(final Writer writer, final Map<String, Entry> snapshot) throws IOException {
+        for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+            writer.write(entry.getKey());
+            writer.write('\t');
+            writer.write(Long.toString(entry.getValue().hash, Character.MAX_RADIX));
+            writer.write('\t');
+            writer.write(Long.toString(entry.getValue().order));
+            writer.write('\n');
+        }
+    }
+
+    private static String getKey(final MobeelizerJsonEntity entity) {
+        return entity.getModel() + "/" + entity.getGuid();
+    }
+
+    /**
+     * Hashes the owner and all fields of the entity, in the order of field names.
+     */
+    private static long hash(final MobeelizerJsonEntity entity) {
+        long hash = hash(FNV_OFFSET_BASIS, entity.getOwner());
+        if (entity.getFields() != null) {
+            for (Map.Entry<String, String> field : new TreeMap<String, String>(entity.getFields()).entrySet()) {
+                hash = hash(hash, field.getKey());
+                hash = hash(hash, field.getValue());
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(final long start, final String value) {
+        long hash = start;
+        if (value == null) {
+            hash ^= 0xffff;
+            return hash * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // separator, so adjacent values cannot be shifted into each other
+        hash ^= 0xfffe;
+        return hash * FNV_PRIME;
+    }
+
+    private static class Entry {
+
+        private final long hash;
+
+        private final long order;
+
+        Entry(final long hash, final long order) {
+            this.hash = hash;
+            this.order = order;
+        }
+
+        /**
+         * Checks if the entry has been set by the synchronization newer than the one with given order. The order 0 is unknown
+         * and never considered older.
+         */
+        boolean isNewerThan(final long order) {
+            return order > 0 && this.order > order;
+        }
+
+    }
+
+    /**
+     * Hashes of the entities sent and received in the single synchronization, added to the snapshot when the synchronization
+     * is confirmed.
+     */
+    class Changes {
+
+        private final Map<String, Long> sent = new HashMap<String, Long>();
+
+        private final Map<String, Long> received = new HashMap<String, Long>();
+
+        /**
+         * Checks if the entity has changed since it was last sent to or received from the cloud.
+         *
+         * @return false if the entity has not changed and should not be sent
+         */
+        boolean hasChanged(final MobeelizerJsonEntity entity) {
+            String key = getKey(entity);
+            long hash = hash(entity);
+            Entry entry = get(key);
+            if (entry != null && entry.hash == hash) {
+                return false;
+            }
+            sent.put(key, hash);
+            return true;
+        }
+
+        /**
+         * Records the entity received from the cloud. It replaces the hash of the same entity sent in this synchronization.
+         */
+        void received(final MobeelizerJsonEntity entity) {
+            received.put(getKey(entity), hash(entity));
+        }
+
+        /**
+         * Adds the hashes to the snapshot.
+         *
+         * @param order
+         *            order of the synchronization, 0 if it is unknown
+         * @param replace
+         *            true if the received entities are the result of the full synchronization
+         */
+        void commit(final long order, final boolean replace) {
+            Map<String, Long> changes = new HashMap<String, Long>(sent);
+            changes.putAll(received);
+            MobeelizerSyncSnapshot.this.commit(changes, order, replace);
+        }
+
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.mobeelizer.java;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mobeelizer.java.api.user.MobeelizerUser;
+
+/**
+ * Users and groups downloaded from the cloud. The whole list of users and groups is valid for the time to live after it has
+ * been downloaded, single users for the time to live after they have been downloaded, created or updated. Users created,
+ * updated or deleted by this instance are updated in place. Users are copied when they are cached and when they are returned,
+ * so changes made by the caller do not change the cache. Passwords are never cached.
+ */
+class MobeelizerUserDirectory {
+
+    private final long ttl;
+
+    private final Map<String, Entry> users = new LinkedHashMap<String, Entry>();
+
+    private long usersExpire;
+
+    private List<String> groups;
+
+    private long groupsExpire;
+
+    MobeelizerUserDirectory(final long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets all users.
+     *
+     * @return users or null if the list has not been downloaded or has expired
+     */
+    synchronized List<MobeelizerUser> getUsers() {
+        long now = System.currentTimeMillis();
+        if (now >= usersExpire) {
+            return null;
+        }
+        List<MobeelizerUser> result = new ArrayList<MobeelizerUser>(users.size());
+        for (Entry entry : users.values()) {
+            result.add(copy(entry.user));
+        }
+        return result;
+    }
+
+    /**
+     * Checks if the whole list of users is cached, so users missing in it do not exist.
+     */
+    synchronized boolean hasUsers() {
+        return System.currentTimeMillis() < usersExpire;
+    }
+
+    synchronized void setUsers(final List<MobeelizerUser> users) {
+        if (ttl <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        this.users.clear();
+        for (MobeelizerUser user : users) {
+            this.users.put(user.getLogin(), new Entry(copy(user), now + ttl));
+        }
+        usersExpire = now + ttl;
+    }
+
+    /**
+     * Gets the user with given login.
+     *
+     * @return user or null if the user has not been downloaded or has expired
+     */
+    synchronized MobeelizerUser getUser(final String login) {
+        Entry entry = users.get(login);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expires) {
+            users.remove(login);
+            usersExpire = 0;
+            return null;
+        }
+        return copy(entry.user);
+    }
+
+    synchronized void putUser(final MobeelizerUser user) {
+        if (ttl <= 0) {
+            return;
+        }
+        users.put(user.getLogin(), new Entry(copy(user), System.currentTimeMillis() + ttl));
+    }
+
+    synchronized void removeUser(final String login) {
+        users.remove(login);
+    }
+
+    /**
+     * Gets all groups.
+     *
+     * @return groups or null if the list has not been downloaded or has expired
+     */
+    synchronized List<String> getGroups() {
+        if (groups == null || System.currentTimeMillis() >= groupsExpire) {
+            return null;
+        }
+        return new ArrayList<String>(groups);
+    }
+
+    synchronized void setGroups(final List<String> groups) {
+        if (ttl <= 0) {
+            return;
+        }
+        this.groups = new ArrayList<String>(groups);
+        groupsExpire = System.currentTimeMillis() + ttl;
+    }
+
+    private static MobeelizerUser copy(final MobeelizerUser user) {
+        MobeelizerUser copy = new MobeelizerUser();
+        copy.setLogin(user.getLogin());
+        copy.setFirstName(user.getFirstName());
+        copy.setLastName(user.getLastName());
+        copy.setMail(user.getMail());
+        copy.setAdmin(user.isAdmin());
+        copy.setGroup(user.getGroup());
+        return copy;
+    }
+
+    private static class Entry {
+
+        private final MobeelizerUser user;
+
+        private final long expires;
+
+        Entry(final MobeelizerUser user, final long expires) {
+            this.user = user;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,444 @@
+package com.mobeelizer.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.params.HttpConnectionParams;
+import org.junit.Test;
+
+import com.mobeelizer.java.api.MobeelizerMode;
+import com.mobeelizer.java.api.MobeelizerOperationError;
+import com.mobeelizer.java.connection.MobeelizerConnectionService;
+import com.mobeelizer.java.connection.MobeelizerConnectionServiceDelegate;
+import com.mobeelizer.java.connection.MobeelizerConnectionServiceImpl;
+import com.mobeelizer.java.errors.MobeelizerOperationErrorImpl;
+
+public class MobeelizerConnectionGuardTest {
+
+    private static final MobeelizerOperationError ERROR = new MobeelizerOperationError() {
+
+        @Override
+        public String getCode() {
+            return "authenticationFailure";
+        }
+
+        @Override
+        public String getMessage() {
+            return "Wrong password";
+        }
+
+    };
+
+    private static final MobeelizerOperationError CONNECTION_ERROR = MobeelizerOperationErrorImpl
+            .exception(new SocketTimeoutException("Read timed out"));
+
+    @Test
+    public void shouldRetryIdempotentCallAfterConnectionFailure() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 3, 0, 0, 0);
+        FaultyOperation operation = new FaultyOperation(2, null);
+
+        // when
+        MobeelizerOperationError result = guard.execute(true, operation);
+
+        // then
+        assertNull(result);
+        assertEquals(3, operation.calls);
+    }
+
+    @Test
+    public void shouldNotRetryCallThatChangesData() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 3, 0, 0, 0);
+        FaultyOperation operation = new FaultyOperation(1, null);
+
+        // when
+        try {
+            guard.execute(false, operation);
+            fail();
+        } catch (IOException e) {
+            // then
+            assertEquals(1, operation.calls);
+        }
+    }
+
+    @Test
+    public void shouldNotRetryErrorReturnedByServer() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 3, 0, 1, 60000);
+        FaultyOperation operation = new FaultyOperation(0, ERROR);
+
+        // when
+        MobeelizerOperationError result = guard.execute(true, operation);
+
+        // then
+        assertSame(ERROR, result);
+        assertEquals(1, operation.calls);
+    }
+
+    @Test
+    public void shouldNotCountErrorsReturnedByServer() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 0, 0, 2, 60000);
+        FaultyOperation operation = new FaultyOperation(0, ERROR);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            assertSame(ERROR, guard.execute(false, operation));
+        }
+
+        // then
+        assertEquals(5, operation.calls);
+    }
+
+    @Test
+    public void shouldRetryAndCountConnectionErrorReturnedByConnectionService() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 2, 0, 3, 60000);
+        FaultyOperation operation = new FaultyOperation(0, CONNECTION_ERROR);
+
+        // when
+        MobeelizerOperationError result = guard.execute(true, operation);
+
+        // then
+        assertSame(CONNECTION_ERROR, result);
+        assertEquals(3, operation.calls);
+        try {
+            guard.execute(true, operation);
+            fail();
+        } catch (IOException e) {
+            assertEquals(3, operation.calls);
+        }
+    }
+
+    @Test
+    public void shouldRetryAndOpenCircuitBreakerWhenStubServerDropsConnections() throws Exception {
+        // given
+        DroppingServer server = new DroppingServer();
+        final MobeelizerConnectionService connectionService = new MobeelizerConnectionServiceImpl(new StubDelegate(server
+                .getUrl()));
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard(server.getUrl(), 2, 0, 4, 60000);
+        MobeelizerConnectionGuard.ErrorOperation waitOperation = new MobeelizerConnectionGuard.ErrorOperation() {
+
+            @Override
+            MobeelizerOperationError execute() {
+                return connectionService.waitUntilSyncRequestComplete("ticket");
+            }
+
+        };
+
+        try {
+            // when
+            MobeelizerOperationError first = guard.executeError(true, waitOperation);
+            int afterFirst = server.getConnections();
+            MobeelizerOperationError second = guard.executeError(true, waitOperation);
+            int afterSecond = server.getConnections();
+            MobeelizerOperationError third = guard.executeError(true, waitOperation);
+
+            // then: three attempts, one more attempt opening the circuit breaker, then no connections at all
+            // (the http client may itself reconnect once per attempt, so connections are counted per attempt)
+            assertTrue(MobeelizerConnectionGuard.isConnectionError(first));
+            assertNotNull(second);
+            assertNotNull(third);
+            assertTrue(afterFirst > 0);
+            assertEquals(0, afterFirst % 3);
+            assertEquals(afterFirst + afterFirst / 3, afterSecond);
+            assertEquals(afterSecond, server.getConnections());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void shouldOpenCircuitBreakerAfterConnectionFailures() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 0, 0, 2, 60000);
+        FaultyOperation operation = new FaultyOperation(Integer.MAX_VALUE, null);
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            try {
+                guard.execute(false, operation);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        // then
+        assertEquals(2, operation.calls);
+    }
+
+    @Test
+    public void shouldCountConnectionFailureWrappedInRuntimeException() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 0, 0, 1, 60000);
+        FaultyOperation operation = new FaultyOperation(1, null);
+        operation.wrapped = true;
+
+        try {
+            guard.execute(false, operation);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // when
+        try {
+            guard.execute(false, operation);
+            fail();
+        } catch (IOException e) {
+            // then
+            assertEquals(1, operation.calls);
+        }
+    }
+
+    @Test
+    public void shouldNotCountOtherRuntimeExceptions() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 3, 0, 1, 60000);
+        FaultyOperation operation = new FaultyOperation(0, null);
+        operation.broken = true;
+
+        try {
+            guard.execute(true, operation);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected, without retries
+            assertEquals(1, operation.calls);
+        }
+        operation.broken = false;
+
+        // when
+        MobeelizerOperationError result = guard.execute(false, operation);
+
+        // then
+        assertNull(result);
+        assertEquals(2, operation.calls);
+    }
+
+    @Test
+    public void shouldLetSingleCallThroughAfterTimeout() throws Exception {
+        // given
+        MobeelizerConnectionGuard guard = new MobeelizerConnectionGuard("http://localhost", 0, 0, 1, 1);
+        FaultyOperation operation = new FaultyOperation(1, null);
+        try {
+            guard.execute(false, operation);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // when
+        Thread.sleep(10);
+        MobeelizerOperationError result = guard.execute(false, operation);
+
+        // then
+        assertNull(result);
+        assertEquals(2, operation.calls);
+    }
+
+    @Test
+    public void shouldNotShareCircuitBreakerBetweenInstances() throws Exception {
+        // given
+        MobeelizerConnectionGuard first = new MobeelizerConnectionGuard("http://localhost", 0, 0, 1, 60000);
+        MobeelizerConnectionGuard second = new MobeelizerConnectionGuard("http://localhost", 0, 0, 1, 60000);
+        try {
+            first.execute(false, new FaultyOperation(1, null));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        FaultyOperation operation = new FaultyOperation(0, null);
+
+        // when
+        MobeelizerOperationError result = second.execute(false, operation);
+
+        // then
+        assertNull(result);
+        assertEquals(1, operation.calls);
+    }
+
+    /**
+     * Local server accepting connections and closing them without the response.
+     */
+    private static class DroppingServer implements Runnable {
+
+        private final ServerSocket socket;
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        DroppingServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "dropping-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket connection = socket.accept();
+                    connections.incrementAndGet();
+                    connection.close();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort();
+        }
+
+        int getConnections() throws InterruptedException {
+            Thread.sleep(100);
+            return connections.get();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+    }
+
+    private static class StubDelegate implements MobeelizerConnectionServiceDelegate {
+
+        private final String url;
+
+        StubDelegate(final String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void setProxyIfNecessary(final HttpRequestBase request) {
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), 2000);
+            HttpConnectionParams.setSoTimeout(request.getParams(), 2000);
+        }
+
+        @Override
+        public void logInfo(final String message) {
+        }
+
+        @Override
+        public void logDebug(final String message) {
+        }
+
+        @Override
+        public boolean isNetworkAvailable() {
+            return true;
+        }
+
+        @Override
+        public String getVersionDigest() {
+            return "digest";
+        }
+
+        @Override
+        public String getVendor() {
+            return "vendor";
+        }
+
+        @Override
+        public String getUser() {
+            return "user";
+        }
+
+        @Override
+        public String getUrl() {
+            return url;
+        }
+
+        @Override
+        public String getSdkVersion() {
+            return "java-sdk-test";
+        }
+
+        @Override
+        public String getPassword() {
+            return "password";
+        }
+
+        @Override
+        public String getInstance() {
+            return "test";
+        }
+
+        @Override
+        public String getDeviceIdentifier() {
+            return "device";
+        }
+
+        @Override
+        public String getDevice() {
+            return "java";
+        }
+
+        @Override
+        public String getApplication() {
+            return "application";
+        }
+
+        @Override
+        public MobeelizerMode getMode() {
+            return MobeelizerMode.TEST;
+        }
+
+    }
+
+    /**
+     * Operation failing to connect the given number of times, then returning the given result.
+     */
+    private static class FaultyOperation extends MobeelizerConnectionGuard.Operation<MobeelizerOperationError> {
+
+        private final int failures;
+
+        private final MobeelizerOperationError result;
+
+        private boolean wrapped;
+
+        private boolean broken;
+
+        private int calls;
+
+        FaultyOperation(final int failures, final MobeelizerOperationError result) {
+            this.failures = failures;
+            this.result = result;
+        }
+
+        @Override
+        MobeelizerOperationError execute() throws IOException {
+            calls++;
+            if (broken) {
+                throw new IllegalArgumentException("Invalid response");
+            }
+            if (calls <= failures) {
+                if (wrapped) {
+                    throw new IllegalStateException(new SocketTimeoutException("Read timed out"));
+                }
+                throw new SocketTimeoutException("Read timed out");
+            }
+            return result;
+        }
+
+        @Override
+        boolean isConnectionFailure(final MobeelizerOperationError result) {
+            return MobeelizerConnectionGuard.isConnectionError(result);
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.mobeelizer.java;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mobeelizer.java.api.MobeelizerFile;
+import com.mobeelizer.java.sync.MobeelizerOutputData;
+
+public class MobeelizerFileIndexTest {
+
+    private File directory;
+
+    private MobeelizerFileIndex index;
+
+    private MobeelizerOutputData outputData;
+
+    @Before
+    public void init() throws IOException {
+        directory = File.createTempFile("mobeelizer", "test");
+        directory.delete();
+        directory.mkdirs();
+        index = new MobeelizerFileIndex(directory, "test", new MobeelizerSpillStorage(null, 1024));
+        outputData = new ConsumingOutputData(new File(directory, "output"), new File(directory, "data"));
+    }
+
+    @After
+    public void cleanUp() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldNotSendFileSentBefore() throws Exception {
+        // given
+        send(new MemoryFile("guid", "content"));
+
+        // when
+        boolean sent = index.newChanges().writeFile(outputData, new MemoryFile("guid", "content"));
+
+        // then
+        assertFalse(sent);
+    }
+
+    @Test
+    public void shouldSendChangedFile() throws Exception {
+        // given
+        send(new MemoryFile("guid", "content"));
+
+        // when
+        boolean sent = index.newChanges().writeFile(outputData, new MemoryFile("guid", "changed content"));
+
+        // then
+        assertTrue(sent);
+    }
+
+    @Test
+    public void shouldSendFileAgainAfterCloudDeletedIt() throws Exception {
+        // given
+        send(new MemoryFile("guid", "content"));
+        index.removeFiles(Collections.singletonList("guid"), false);
+
+        // when
+        boolean sent = index.newChanges().writeFile(outputData, new MemoryFile("guid", "content"));
+
+        // then
+        assertTrue(sent);
+    }
+
+    @Test
+    public void shouldSendFileAgainAfterRestartWhenCloudDeletedIt() throws Exception {
+        // given
+        send(new MemoryFile("guid", "content"));
+        index.removeFiles(Collections.singletonList("guid"), false);
+        index = new MobeelizerFileIndex(directory, "test", new MobeelizerSpillStorage(null, 1024));
+
+        // when
+        boolean sent = index.newChanges().writeFile(outputData, new MemoryFile("guid", "content"));
+
+        // then
+        assertTrue(sent);
+    }
+
+    @Test
+    public void shouldNotIndexFileDeletedInTheSameSynchronization() throws Exception {
+        // given
+        MobeelizerFileIndex.Changes changes = index.newChanges();
+        changes.writeFile(outputData, new MemoryFile("guid", "content"));
+        changes.removeFiles(Collections.singletonList("guid"));
+        changes.commit();
+
+        // when
+        boolean sent = index.newChanges().writeFile(outputData, new MemoryFile("guid", "content"));
+
+        // then
+        assertTrue(sent);
+    }
+
+    @Test
+    public void shouldSendAllFilesAgainAfterFullSynchronization() throws Exception {
+        // given
+        send(new MemoryFile("guid", "content"));
+        index.removeFiles(Collections.<String> emptyList(), true);
+
+        // when
+        boolean sent = index.newChanges().writeFile(outputData, new MemoryFile("guid", "content"));
+
+        // then
+        assertTrue(sent);
+    }
+
+    private void send(final MobeelizerFile file) throws IOException {
+        MobeelizerFileIndex.Changes changes = index.newChanges();
+        assertTrue(changes.writeFile(outputData, file));
+        changes.commit();
+    }
+
+    /**
+     * Output reading the content of the written files, as the output sending them to the cloud does.
+     */
+    private static class ConsumingOutputData extends MobeelizerOutputData {
+
+        ConsumingOutputData(final File outputFile, final File dataFile) {
+            super(outputFile, dataFile);
+        }
+
+        @Override
+        public void writeFile(final String guid, final InputStream stream) {
+            try {
+                byte[] buffer = new byte[1024];
+                while (stream.read(buffer) > -1) {
+                    // content is not needed
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+    }
+
+    /**
+     * File without the local file, read from memory.
+     */
+    private static class MemoryFile implements MobeelizerFile {
+
+        private final String guid;
+
+        private final byte[] content;
+
+        MemoryFile(final String guid, final String content) {
+            this.guid = guid;
+            this.content = content.getBytes();
+        }
+
+        @Override
+        public String getName() {
+            return guid;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public String getGuid() {
+            return guid;
+        }
+
+        @Override
+        public File getFile() {
+            return null;
+        }
+
+    }
+
+}
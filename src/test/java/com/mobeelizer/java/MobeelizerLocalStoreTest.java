@@ -0,0 +1,265 @@
+package com.mobeelizer.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mobeelizer.java.sync.MobeelizerJsonEntity;
+
+public class MobeelizerLocalStoreTest {
+
+    private File directory;
+
+    private Map<String, Set<String>> indexes;
+
+    private MobeelizerLocalStore store;
+
+    @Before
+    public void init() throws IOException {
+        directory = File.createTempFile("mobeelizer", "test");
+        directory.delete();
+        directory.mkdirs();
+        indexes = new HashMap<String, Set<String>>();
+        indexes.put("model", new HashSet<String>(Collections.singleton("name")));
+        store = newStore();
+    }
+
+    @After
+    public void cleanUp() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldIgnoreEntitiesOfOlderSynchronization() throws Exception {
+        // given
+        commit(2, false, entity("guid", "new"));
+
+        // when
+        commit(1, false, entity("guid", "old"));
+
+        // then
+        assertEquals("new", store.get("model", "guid").getFields().get("name"));
+    }
+
+    @Test
+    public void shouldApplyEntitiesOfUnknownOrder() throws Exception {
+        // given
+        commit(2, false, entity("guid", "new"));
+
+        // when
+        commit(0, false, entity("guid", "unknown"));
+
+        // then
+        assertEquals("unknown", store.get("model", "guid").getFields().get("name"));
+    }
+
+    @Test
+    public void shouldIgnoreEntityDeletedInNewerSynchronization() throws Exception {
+        // given
+        commit(1, false, entity("guid", "name"));
+        commit(3, false, deleted("guid"));
+
+        // when
+        commit(2, false, entity("guid", "name"));
+
+        // then
+        assertNull(store.get("model", "guid"));
+        assertEquals(0, store.find("model", "name", "name").size());
+    }
+
+    @Test
+    public void shouldKeepRemovalAfterRestart() throws Exception {
+        // given
+        commit(1, false, entity("guid", "name"));
+        commit(3, false, deleted("guid"));
+        store = newStore();
+
+        // when
+        commit(2, false, entity("guid", "name"));
+
+        // then
+        assertNull(store.get("model", "guid"));
+    }
+
+    @Test
+    public void shouldDropEntitiesMissingInFullSynchronization() throws Exception {
+        // given
+        commit(1, false, entity("first", "name"), entity("second", "name"));
+
+        // when
+        commit(2, true, entity("first", "changed"));
+
+        // then
+        assertEquals("changed", store.get("model", "first").getFields().get("name"));
+        assertNull(store.get("model", "second"));
+        assertEquals(0, store.find("model", "name", "name").size());
+        assertEquals(1, newStore().getAll("model").size());
+    }
+
+    @Test
+    public void shouldKeepNewerEntitiesMissingInFullSynchronization() throws Exception {
+        // given
+        commit(3, false, entity("newer", "name"));
+
+        // when
+        commit(2, true, entity("first", "name"));
+
+        // then
+        assertEquals(2, store.getAll("model").size());
+        assertEquals(2, store.find("model", "name", "name").size());
+    }
+
+    @Test
+    public void shouldDropAllEntitiesWhenFullSynchronizationIsEmpty() throws Exception {
+        // given
+        commit(1, false, entity("guid", "name"));
+
+        // when
+        store.newChanges(2, true).commit();
+
+        // then
+        assertNull(store.get("model", "guid"));
+        assertNull(newStore().get("model", "guid"));
+    }
+
+    @Test
+    public void shouldUpdateIndexWhenEntityChanges() throws Exception {
+        // given
+        commit(1, false, entity("guid", "old"));
+
+        // when
+        commit(2, false, entity("guid", "new"));
+
+        // then
+        assertEquals(0, store.find("model", "name", "old").size());
+        assertEquals("guid", store.find("model", "name", "new").get(0).getGuid());
+    }
+
+    @Test
+    public void shouldApplyLastOfEntitiesReceivedTwice() throws Exception {
+        // when
+        commit(1, false, entity("guid", "first"), entity("guid", "second"));
+
+        // then
+        assertEquals("second", store.get("model", "guid").getFields().get("name"));
+        assertEquals("second", newStore().get("model", "guid").getFields().get("name"));
+    }
+
+    @Test
+    public void shouldCompactLogGrowingTwiceAsLargeAsEntries() throws Exception {
+        // given
+        MobeelizerJsonEntity[] entities = new MobeelizerJsonEntity[600];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = entity("guid" + i, "name");
+        }
+        commit(1, false, entities);
+        commit(2, false, entities);
+        assertEquals(1200, countLines());
+
+        // when
+        commit(3, false, entities);
+
+        // then
+        assertEquals(600, countLines());
+        assertEquals(600, store.getAll("model").size());
+        assertEquals(600, newStore().find("model", "name", "name").size());
+    }
+
+    @Test
+    public void shouldReadStoreAfterRestart() throws Exception {
+        // given
+        commit(1, false, entity("first", "name"), entity("second", "other"));
+        commit(2, false, deleted("first"));
+
+        // when
+        store = newStore();
+
+        // then
+        assertNull(store.get("model", "first"));
+        List<MobeelizerJsonEntity> found = store.find("model", "name", "other");
+        assertEquals(1, found.size());
+        assertEquals("second", found.get(0).getGuid());
+        assertEquals("owner", found.get(0).getOwner());
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteLastLine() throws Exception {
+        // given
+        commit(1, false, entity("first", "name"));
+        OutputStream output = new FileOutputStream(new File(directory, "test.store"), true);
+        output.write("{\"model\":\"model\",\"gu".getBytes("UTF-8"));
+        output.close();
+        store = newStore();
+
+        // when
+        commit(2, false, entity("second", "name"));
+
+        // then
+        assertEquals(2, newStore().getAll("model").size());
+    }
+
+    private MobeelizerLocalStore newStore() {
+        return new MobeelizerLocalStore(directory, "test", indexes, new MobeelizerSpillStorage(null, 1024));
+    }
+
+    private void commit(final long order, final boolean replace, final MobeelizerJsonEntity... entities) {
+        MobeelizerLocalStore.Changes changes = store.newChanges(order, replace);
+        for (MobeelizerJsonEntity entity : entities) {
+            changes.received(entity);
+        }
+        changes.commit();
+    }
+
+    private int countLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(directory, "test.store")));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static MobeelizerJsonEntity entity(final String guid, final String name) {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("name", name);
+        fields.put("s_deleted", "false");
+        return entity(guid, fields);
+    }
+
+    private static MobeelizerJsonEntity deleted(final String guid) {
+        return entity(guid, Collections.singletonMap("s_deleted", "true"));
+    }
+
+    private static MobeelizerJsonEntity entity(final String guid, final Map<String, String> fields) {
+        MobeelizerJsonEntity entity = new MobeelizerJsonEntity();
+        entity.setModel("model");
+        entity.setGuid(guid);
+        entity.setOwner("owner");
+        entity.setFields(fields);
+        return entity;
+    }
+
+}
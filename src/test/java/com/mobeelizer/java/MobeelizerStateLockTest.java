@@ -0,0 +1,61 @@
+package com.mobeelizer.java;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MobeelizerStateLockTest {
+
+    private File directory;
+
+    @Before
+    public void init() throws IOException {
+        directory = File.createTempFile("mobeelizer", "test");
+        directory.delete();
+        directory.deleteOnExit();
+    }
+
+    @Test
+    public void shouldRefuseSecondOwner() throws Exception {
+        // given
+        Object owner = new Object();
+        MobeelizerStateLock.acquire(directory, "test", owner);
+
+        // when
+        try {
+            MobeelizerStateLock.acquire(directory, "test", new Object());
+            fail();
+        } catch (IllegalStateException e) {
+            // then
+            MobeelizerStateLock.acquire(directory, "test", owner);
+        }
+    }
+
+    @Test
+    public void shouldLetOwnerLockAgain() throws Exception {
+        // given
+        Object owner = new Object();
+        MobeelizerStateLock.acquire(directory, "test", owner);
+
+        // when
+        MobeelizerStateLock.acquire(directory, "test", owner);
+
+        // then no exception
+    }
+
+    @Test
+    public void shouldLockStateOfOtherUsers() throws Exception {
+        // given
+        MobeelizerStateLock.acquire(directory, "first", new Object());
+
+        // when
+        MobeelizerStateLock.acquire(directory, "second", new Object());
+
+        // then no exception
+    }
+
+}